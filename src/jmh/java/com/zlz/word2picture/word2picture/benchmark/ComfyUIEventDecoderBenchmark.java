@@ -0,0 +1,62 @@
+package com.zlz.word2picture.word2picture.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zlz.word2picture.word2picture.model.ComfyUIEvent;
+import com.zlz.word2picture.word2picture.service.ComfyUIEventDecoder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 解码一次完整生成过程中ComfyUI推送的消息(comfyui-messages.jsonl，以progress为主)：
+ * 旧实现每帧新建ObjectMapper、复制为字符串并构建JsonNode树，新实现在DataBuffer上流式读取需要的字段
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComfyUIEventDecoderBenchmark {
+
+    private final DataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+    private final ComfyUIEventDecoder decoder = new ComfyUIEventDecoder();
+
+    private List<byte[]> messages;
+
+    @Setup
+    public void setup() throws Exception {
+        ClassPathResource resource = new ClassPathResource("comfyui-messages.jsonl");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource.getInputStream(), StandardCharsets.UTF_8))) {
+            messages = reader.lines().map(line -> line.getBytes(StandardCharsets.UTF_8)).collect(Collectors.toList());
+        }
+    }
+
+    @Benchmark
+    public void legacyTree(Blackhole blackhole) throws Exception {
+        for (byte[] message : messages) {
+            String text = bufferFactory.wrap(message).toString(StandardCharsets.UTF_8);
+            JsonNode node = new ObjectMapper().readTree(text);
+            blackhole.consume(node.get("type").asText());
+            blackhole.consume(node.path("data").path("prompt_id").asText(null));
+        }
+    }
+
+    @Benchmark
+    public void streamingDecoder(Blackhole blackhole) {
+        for (byte[] message : messages) {
+            ComfyUIEvent event = decoder.decode(bufferFactory.wrap(message));
+            blackhole.consume(event);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.zlz.word2picture.word2picture.benchmark;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.zlz.word2picture.word2picture.config.ComfyUIProperties;
+import com.zlz.word2picture.word2picture.model.TaskRecord;
+import com.zlz.word2picture.word2picture.model.TaskResponse;
+import com.zlz.word2picture.word2picture.service.TaskStateStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每登记一个任务占用的内存：旧实现(ConcurrentHashMap + @Data的TaskResponse)与任务登记表(Caffeine + TaskRecord)对比
+ * 看gc.alloc.rate.norm(字节/任务)；两者登记后对象都被长期持有，分配量即为常驻内存
+ * mvn -Pbenchmark compile exec:exec -Dbenchmark=TaskRegistry
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaskRegistryBenchmark {
+
+    private static final String CLIENT_ID = UUID.randomUUID().toString();
+
+    private Map<String, TaskResponse> legacy;
+    private Cache<String, TaskRecord> registry;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        legacy = new ConcurrentHashMap<>();
+        ComfyUIProperties.TaskRegistry config = new ComfyUIProperties.TaskRegistry();
+        // 不触发数量淘汰，只计算登记本身的开销
+        config.setMaxSize(Long.MAX_VALUE);
+        registry = TaskStateStore.newRegistry(config, (taskId, task, cause) -> { });
+    }
+
+    /**
+     * 已完成的任务：状态和消息为常量，输出地址每个任务不同
+     */
+    @Benchmark
+    public Object legacyMap() {
+        String taskId = UUID.randomUUID().toString();
+        TaskResponse task = new TaskResponse();
+        task.setTaskId(taskId);
+        task.setClientId(CLIENT_ID);
+        task.setStatus("COMPLETED");
+        task.setMessage("图像生成完成");
+        task.setImageUrl(imageUrl(taskId));
+        task.setBackend("default");
+        task.setTimestamp(System.currentTimeMillis());
+        legacy.put(taskId, task);
+        return task;
+    }
+
+    @Benchmark
+    public Object taskRegistry() {
+        String taskId = UUID.randomUUID().toString();
+        TaskRecord task = new TaskRecord(taskId, CLIENT_ID, "COMPLETED", "图像生成完成",
+                imageUrl(taskId), "default", System.currentTimeMillis(), -1);
+        registry.put(taskId, task);
+        return task;
+    }
+
+    private static String imageUrl(String taskId) {
+        return "http://127.0.0.1:9000/word2picture/results/" + taskId + "/ComfyUI_00001_.png";
+    }
+}
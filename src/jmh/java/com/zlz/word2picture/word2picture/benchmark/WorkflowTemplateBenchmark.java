@@ -0,0 +1,87 @@
+package com.zlz.word2picture.word2picture.benchmark;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zlz.word2picture.word2picture.model.GenerateImageRequest;
+import com.zlz.word2picture.word2picture.service.CompiledWorkflow;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比每次请求解析模板JSON并遍历全部节点（旧实现）与预编译模板按需复制（新实现）的开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkflowTemplateBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Param({"qwen-image-pro.json", "qwen-image-edit-pro.json"})
+    private String template;
+
+    private GenerateImageRequest request;
+    private CompiledWorkflow compiled;
+
+    @Setup
+    public void setup() throws Exception {
+        request = new GenerateImageRequest();
+        request.setPrompt("一个机器人");
+        request.setWorkflowTemplate(template);
+        request.setImageName("bench.png");
+        compiled = CompiledWorkflow.compile(template, parse(), null);
+    }
+
+    @Benchmark
+    public Map<String, Object> parseAndWalk() throws Exception {
+        Map<String, Object> workflow = parse();
+        List<String> updateId = legacyPatchIds(template);
+        for (Map.Entry<String, Object> entry : workflow.entrySet()) {
+            if (updateId.contains(entry.getKey()) && entry.getValue() instanceof Map) {
+                patch((Map<String, Object>) entry.getValue());
+            }
+        }
+        return workflow;
+    }
+
+    @Benchmark
+    public Map<String, Object> compiledInstantiate() {
+        return compiled.instantiate(request);
+    }
+
+    private Map<String, Object> parse() throws Exception {
+        try (InputStream in = new ClassPathResource("workflows/" + template).getInputStream()) {
+            return objectMapper.readValue(in, new TypeReference<Map<String, Object>>() {});
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void patch(Map<String, Object> node) {
+        Map<String, Object> inputs = (Map<String, Object>) node.get("inputs");
+        switch (String.valueOf(node.get("class_type"))) {
+            case "KSampler": inputs.put("seed", System.currentTimeMillis());break;
+            case "CLIPTextEncode": inputs.put("text", request.getPrompt());break;
+            case "TextEncodeQwenImageEdit": inputs.put("prompt", request.getPrompt());break;
+            case "LoadImage": inputs.put("image", request.getImageName());break;
+            case "EmptyLatentImage":
+                inputs.put("width", request.getWidth());
+                inputs.put("height", request.getHeight());
+                break;
+        }
+    }
+
+    private static List<String> legacyPatchIds(String template) {
+        switch (template) {
+            case "qwen-image-pro.json": return Arrays.asList("58", "3", "6");
+            case "qwen-image-edit-pro.json": return Arrays.asList("5", "17", "18");
+            default: return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.zlz.word2picture.word2picture.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.resources.LoopResources;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 模拟的ComfyUI，不占用GPU
+ * 实现本服务用到的/prompt、/history/{id}、/queue、/upload/image、/view和/ws事件流；与真实ComfyUI一样同时只执行workers个任务，
+ * 其余排队，每个任务按渲染耗时依次推送execution_start、executing、progress、executed，队列变化时广播status
+ */
+@Slf4j
+public class FakeComfyUI implements Closeable {
+
+    // 采样节点和输出节点的ID，对应工作流中的KSampler和SaveImage
+    private static final String SAMPLER_NODE = "3";
+    private static final String OUTPUT_NODE = "9";
+
+    /**
+     * @param renderMillis         每个任务的渲染耗时
+     * @param steps                采样步数，即每个任务推送的progress消息数
+     * @param workers              同时执行的任务数
+     * @param submitFailureRate    /prompt直接返回500的比例
+     * @param executionFailureRate 执行到一半推送execution_error的比例
+     * @param imageBytes           /view返回的输出图片大小
+     */
+    public record Options(long renderMillis, int steps, int workers, double submitFailureRate,
+                          double executionFailureRate, int imageBytes) {
+    }
+
+    private record Prompt(String id, String clientId) {
+    }
+
+    private final Options options;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final byte[] image;
+    // 所有事件都在该线程上发出，同一websocket的消息不会并发写入
+    private final ScheduledExecutorService executor;
+    private final Map<String, Sinks.Many<String>> clients = new ConcurrentHashMap<>();
+    private final Map<String, JsonNode> history = new ConcurrentHashMap<>();
+    private final Deque<Prompt> pending = new ArrayDeque<>();
+    private final AtomicLong number = new AtomicLong();
+    private int running;
+    // 供/queue在其他线程读取
+    private volatile int queueRemaining;
+    // 独立的事件循环，不与被测服务共用
+    private final LoopResources loops;
+    private final DisposableServer server;
+
+    public FakeComfyUI(String name, Options options) {
+        this.options = options;
+        this.image = new byte[options.imageBytes()];
+        ThreadLocalRandom.current().nextBytes(image);
+        // PNG文件头
+        System.arraycopy(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}, 0, image, 0, 8);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fake-comfyui-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.loops = LoopResources.create("fake-comfyui-" + name, 1, true);
+        this.server = HttpServer.create()
+                .runOn(loops)
+                .host("127.0.0.1")
+                .port(0)
+                .route(routes -> routes
+                        .get("/queue", (request, response) -> sendJson(response, queue()))
+                        .post("/prompt", (request, response) -> request.receive().aggregate().asString()
+                                .flatMap(body -> submit(response, body)))
+                        .get("/history/{id}", (request, response) -> {
+                            JsonNode entry = history.get(request.param("id"));
+                            ObjectNode result = objectMapper.createObjectNode();
+                            if (entry != null) {
+                                result.set(request.param("id"), entry);
+                            }
+                            return sendJson(response, result);
+                        })
+                        .post("/upload/image", (request, response) -> request.receive().then(Mono.defer(() -> {
+                            ObjectNode result = objectMapper.createObjectNode()
+                                    .put("name", "upload-" + UUID.randomUUID() + ".png")
+                                    .put("subfolder", "")
+                                    .put("type", "input");
+                            return sendJson(response, result);
+                        })))
+                        .get("/view", (request, response) -> response
+                                .header(HttpHeaderNames.CONTENT_TYPE, "image/png")
+                                .header(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(image.length))
+                                .sendByteArray(Mono.just(image))
+                                .then())
+                        .get("/ws", (request, response) -> {
+                            String clientId = new QueryStringDecoder(request.uri()).parameters()
+                                    .getOrDefault("clientId", List.of(UUID.randomUUID().toString())).get(0);
+                            return response.sendWebsocket((in, out) -> {
+                                Sinks.Many<String> sink = Sinks.many().unicast().onBackpressureBuffer();
+                                clients.put(clientId, sink);
+                                executor.execute(() -> sink.tryEmitNext(status(clientId)));
+                                return out.sendString(sink.asFlux().takeUntilOther(in.receive().then()))
+                                        .then()
+                                        .doFinally(signal -> clients.remove(clientId, sink));
+                            });
+                        }))
+                .bindNow();
+        log.info("模拟ComfyUI[{}]已启动: {}, {}", name, baseUrl(), options);
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.port();
+    }
+
+    public String wsUrl() {
+        return "ws://127.0.0.1:" + server.port() + "/ws";
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+        loops.dispose();
+        executor.shutdownNow();
+    }
+
+    private Mono<Void> submit(HttpServerResponse response, String body) {
+        if (ThreadLocalRandom.current().nextDouble() < options.submitFailureRate()) {
+            return response.status(HttpResponseStatus.INTERNAL_SERVER_ERROR)
+                    .sendString(Mono.just("{\"error\": \"模拟的提交失败\"}"))
+                    .then();
+        }
+        JsonNode request;
+        try {
+            request = objectMapper.readTree(body);
+        } catch (Exception e) {
+            return response.status(HttpResponseStatus.BAD_REQUEST).send().then();
+        }
+        String promptId = request.path("prompt_id").asText(UUID.randomUUID().toString());
+        Prompt prompt = new Prompt(promptId, request.path("client_id").asText(null));
+        long position = number.getAndIncrement();
+        executor.execute(() -> {
+            pending.add(prompt);
+            broadcastStatus();
+            startNext();
+        });
+        ObjectNode result = objectMapper.createObjectNode()
+                .put("prompt_id", promptId)
+                .put("number", position);
+        result.putObject("node_errors");
+        return sendJson(response, result);
+    }
+
+    private void startNext() {
+        while (running < options.workers() && !pending.isEmpty()) {
+            Prompt prompt = pending.poll();
+            running++;
+            send(prompt, "execution_start", event(prompt));
+            send(prompt, "executing", event(prompt).put("node", SAMPLER_NODE));
+            boolean fail = ThreadLocalRandom.current().nextDouble() < options.executionFailureRate();
+            step(prompt, 1, fail);
+        }
+    }
+
+    private void step(Prompt prompt, int step, boolean fail) {
+        long interval = Math.max(1, options.renderMillis() / (options.steps() + 1));
+        executor.schedule(() -> {
+            if (fail && step > options.steps() / 2) {
+                send(prompt, "execution_error", event(prompt)
+                        .put("node_id", SAMPLER_NODE)
+                        .put("node_type", "KSampler")
+                        .put("exception_message", "模拟的执行失败"));
+                finish(prompt, null);
+            } else if (step <= options.steps()) {
+                send(prompt, "progress", event(prompt)
+                        .put("value", step)
+                        .put("max", options.steps())
+                        .put("node", SAMPLER_NODE));
+                step(prompt, step + 1, fail);
+            } else {
+                ObjectNode output = objectMapper.createObjectNode();
+                output.putArray("images").addObject()
+                        .put("filename", "ComfyUI_" + prompt.id() + "_.png")
+                        .put("subfolder", "")
+                        .put("type", "output");
+                send(prompt, "executing", event(prompt).put("node", OUTPUT_NODE));
+                ObjectNode executed = event(prompt).put("node", OUTPUT_NODE);
+                executed.set("output", output);
+                send(prompt, "executed", executed);
+                send(prompt, "executing", event(prompt).putNull("node"));
+                finish(prompt, output);
+            }
+        }, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void finish(Prompt prompt, ObjectNode output) {
+        ObjectNode entry = objectMapper.createObjectNode();
+        ObjectNode outputs = entry.putObject("outputs");
+        if (output != null) {
+            outputs.set(OUTPUT_NODE, output);
+        }
+        entry.putObject("status")
+                .put("status_str", output != null ? "success" : "error")
+                .put("completed", output != null);
+        history.put(prompt.id(), entry);
+        running--;
+        startNext();
+        broadcastStatus();
+    }
+
+    private ObjectNode event(Prompt prompt) {
+        return objectMapper.createObjectNode().put("prompt_id", prompt.id());
+    }
+
+    private void send(Prompt prompt, String type, ObjectNode data) {
+        Sinks.Many<String> sink = prompt.clientId() == null ? null : clients.get(prompt.clientId());
+        if (sink != null) {
+            sink.tryEmitNext(message(type, data));
+        }
+    }
+
+    private void broadcastStatus() {
+        queueRemaining = pending.size() + running;
+        clients.forEach((clientId, sink) -> sink.tryEmitNext(status(clientId)));
+    }
+
+    private String status(String clientId) {
+        ObjectNode data = objectMapper.createObjectNode();
+        data.putObject("status").putObject("exec_info").put("queue_remaining", pending.size() + running);
+        data.put("sid", clientId);
+        return message("status", data);
+    }
+
+    private ObjectNode queue() {
+        ObjectNode queue = objectMapper.createObjectNode();
+        int remaining = queueRemaining;
+        int active = Math.min(remaining, options.workers());
+        for (int i = 0; i < active; i++) {
+            queue.withArray("queue_running").add(i);
+        }
+        for (int i = active; i < remaining; i++) {
+            queue.withArray("queue_pending").add(i);
+        }
+        queue.withArray("queue_running");
+        queue.withArray("queue_pending");
+        return queue;
+    }
+
+    private String message(String type, ObjectNode data) {
+        ObjectNode message = objectMapper.createObjectNode().put("type", type);
+        message.set("data", data);
+        return message.toString();
+    }
+
+    private Mono<Void> sendJson(HttpServerResponse response, JsonNode body) {
+        return response.header(HttpHeaderNames.CONTENT_TYPE, "application/json")
+                .sendString(Mono.just(body.toString()))
+                .then();
+    }
+}
@@ -0,0 +1,186 @@
+package com.zlz.word2picture.word2picture.loadtest;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.netty.resources.LoopResources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的MinIO替身，对象保存在内存中
+ * 只实现MinioClient在本服务中用到的S3接口：桶的存在检查/创建/区域查询，对象的上传/查询/下载/删除，以及分片上传；不校验签名
+ */
+@Slf4j
+public class FakeMinio implements Closeable {
+
+    private static final String LOCATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<LocationConstraint xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">us-east-1</LocationConstraint>";
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+    private record StoredObject(byte[] data, String contentType, String etag, ZonedDateTime lastModified) {
+    }
+
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong storedBytes = new AtomicLong();
+    // 独立的事件循环，不与被测服务共用
+    private final LoopResources loops;
+    private final DisposableServer server;
+
+    public FakeMinio() {
+        this.loops = LoopResources.create("fake-minio", 1, true);
+        this.server = HttpServer.create()
+                .runOn(loops)
+                .host("127.0.0.1")
+                .port(0)
+                .handle(this::handle)
+                .bindNow();
+        log.info("模拟MinIO已启动: {}", url());
+    }
+
+    public String url() {
+        return "http://127.0.0.1:" + server.port();
+    }
+
+    public int getObjectCount() {
+        return objects.size();
+    }
+
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+        loops.dispose();
+    }
+
+    private Mono<Void> handle(HttpServerRequest request, HttpServerResponse response) {
+        QueryStringDecoder uri = new QueryStringDecoder(request.uri());
+        Map<String, List<String>> params = uri.parameters();
+        String[] path = uri.path().substring(1).split("/", 2);
+        String bucket = path[0];
+        String key = path.length > 1 && !path[1].isEmpty() ? bucket + "/" + path[1] : null;
+        HttpMethod method = request.method();
+
+        if (key == null) {
+            // 桶级请求：bucketExists/makeBucket/区域查询
+            if (HttpMethod.GET.equals(method) && params.containsKey("location")) {
+                return sendXml(response, LOCATION);
+            }
+            return response.status(HttpResponseStatus.OK).send().then();
+        }
+        if (HttpMethod.HEAD.equals(method) || HttpMethod.GET.equals(method)) {
+            StoredObject object = objects.get(key);
+            if (object == null) {
+                response.status(HttpResponseStatus.NOT_FOUND);
+                return HttpMethod.HEAD.equals(method) ? response.send().then() : sendXml(response, noSuchKey(bucket, path[1]));
+            }
+            response.header(HttpHeaderNames.ETAG, object.etag())
+                    .header(HttpHeaderNames.LAST_MODIFIED, HTTP_DATE.format(object.lastModified()))
+                    .header(HttpHeaderNames.CONTENT_TYPE, object.contentType())
+                    .header(HttpHeaderNames.CONTENT_LENGTH, String.valueOf(object.data().length));
+            return HttpMethod.HEAD.equals(method) ? response.send().then()
+                    : response.sendByteArray(Mono.just(object.data())).then();
+        }
+        if (HttpMethod.DELETE.equals(method)) {
+            StoredObject removed = objects.remove(key);
+            if (removed != null) {
+                storedBytes.addAndGet(-removed.data().length);
+            }
+            return response.status(HttpResponseStatus.NO_CONTENT).send().then();
+        }
+        if (HttpMethod.POST.equals(method) && params.containsKey("uploads")) {
+            String uploadId = UUID.randomUUID().toString();
+            uploads.put(uploadId, new ConcurrentSkipListMap<>());
+            return sendXml(response, "<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + path[1]
+                    + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        }
+        String contentType = request.requestHeaders().get(HttpHeaderNames.CONTENT_TYPE, "application/octet-stream");
+        return request.receive().aggregate().asByteArray().defaultIfEmpty(new byte[0]).flatMap(body -> {
+            if (HttpMethod.POST.equals(method) && params.containsKey("uploadId")) {
+                // 完成分片上传：按分片号拼接
+                Map<Integer, byte[]> parts = uploads.remove(params.get("uploadId").get(0));
+                if (parts == null) {
+                    return response.status(HttpResponseStatus.NOT_FOUND).send().then();
+                }
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                parts.values().forEach(data::writeBytes);
+                StoredObject object = store(key, data.toByteArray(), contentType);
+                return sendXml(response, "<CompleteMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + path[1]
+                        + "</Key><ETag>" + object.etag() + "</ETag></CompleteMultipartUploadResult>");
+            }
+            if (params.containsKey("uploadId")) {
+                Map<Integer, byte[]> parts = uploads.get(params.get("uploadId").get(0));
+                if (parts == null) {
+                    return response.status(HttpResponseStatus.NOT_FOUND).send().then();
+                }
+                int partNumber = Integer.parseInt(params.get("partNumber").get(0));
+                String copySource = request.requestHeaders().get("x-amz-copy-source");
+                if (copySource != null) {
+                    // composeObject按分片复制已有对象
+                    StoredObject source = objects.get(QueryStringDecoder.decodeComponent(copySource).replaceFirst("^/", ""));
+                    if (source == null) {
+                        return response.status(HttpResponseStatus.NOT_FOUND).send().then();
+                    }
+                    parts.put(partNumber, source.data());
+                    return sendXml(response, "<CopyPartResult><ETag>" + source.etag() + "</ETag><LastModified>"
+                            + source.lastModified().format(DateTimeFormatter.ISO_INSTANT) + "</LastModified></CopyPartResult>");
+                }
+                parts.put(partNumber, body);
+                return response.header(HttpHeaderNames.ETAG, etag(body)).send().then();
+            }
+            StoredObject object = store(key, body, contentType);
+            return response.header(HttpHeaderNames.ETAG, object.etag()).send().then();
+        });
+    }
+
+    private StoredObject store(String key, byte[] data, String contentType) {
+        StoredObject object = new StoredObject(data, contentType, etag(data), ZonedDateTime.now(ZoneOffset.UTC).withNano(0));
+        StoredObject previous = objects.put(key, object);
+        storedBytes.addAndGet(data.length - (previous != null ? previous.data().length : 0));
+        return object;
+    }
+
+    private static String etag(byte[] data) {
+        try {
+            return "\"" + HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(data)) + "\"";
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String noSuchKey(String bucket, String key) {
+        return "<Error><Code>NoSuchKey</Code><Message>The specified key does not exist.</Message><Key>" + key
+                + "</Key><BucketName>" + bucket + "</BucketName><Resource>/" + bucket + "/" + key
+                + "</Resource><RequestId>fake</RequestId><HostId>fake</HostId></Error>";
+    }
+
+    private static Mono<Void> sendXml(HttpServerResponse response, String body) {
+        return response.header(HttpHeaderNames.CONTENT_TYPE, "application/xml")
+                .sendString(Mono.just(body))
+                .then();
+    }
+}
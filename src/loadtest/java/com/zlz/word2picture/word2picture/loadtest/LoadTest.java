@@ -0,0 +1,491 @@
+package com.zlz.word2picture.word2picture.loadtest;
+
+import ch.qos.logback.classic.Level;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zlz.word2picture.word2picture.Word2pictureApplication;
+import com.zlz.word2picture.word2picture.model.TaskResponse;
+import com.zlz.word2picture.word2picture.service.TaskProgressService;
+import com.zlz.word2picture.word2picture.service.TaskStateStore;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.reactive.context.ReactiveWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.netty.resources.LoopResources;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * 端到端负载测试：在同一进程内启动模拟ComfyUI、模拟MinIO和本服务，按目标RPS调用/api/image/generate并订阅/listening，
+ * 输出提交延迟、首次进度(RUNNING)时间、完成时间的p50/p99，以及运行期间的堆内存和线程数
+ * mvn -Ploadtest compile exec:exec -Dloadtest.args="rps=20 duration=60"
+ * 参数为key=value，见Options；以--开头的参数原样传给服务，例如--spring.main.web-application-type=reactive
+ */
+@Slf4j
+public class LoadTest {
+
+    private static final ParameterizedTypeReference<ServerSentEvent<String>> SSE =
+            new ParameterizedTypeReference<ServerSentEvent<String>>() {
+            };
+
+    /**
+     * 负载参数，均可通过key=value覆盖
+     */
+    static final class Options {
+        // 目标请求速率和持续时间(秒)，预热期间的结果不计入
+        double rps = 5;
+        int duration = 60;
+        int warmup = 10;
+        // 请求结束后等待未完成任务的最长时间(秒)
+        int drain = 120;
+        // 模拟ComfyUI：后端数、每个后端同时执行的任务数、渲染耗时(毫秒)、采样步数、失败比例、输出图片大小
+        int backends = 2;
+        int workers = 1;
+        long render = 3000;
+        int steps = 20;
+        double submitFailure = 0;
+        double executionFailure = 0;
+        int imageBytes = 512 * 1024;
+        // 请求携带的X-Client-Id个数，按客户端公平排队
+        int clients = 50;
+        // 负载前先建立的空闲进度流数，用于估算每个连接的内存和线程开销
+        int idleStreams = 0;
+        String template = "qwen-image-pro.json";
+        final List<String> appArgs = new ArrayList<>();
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (arg.startsWith("--")) {
+                    options.appArgs.add(arg);
+                    continue;
+                }
+                int split = arg.indexOf('=');
+                if (split < 0) {
+                    throw new IllegalArgumentException("参数格式应为key=value: " + arg);
+                }
+                String value = arg.substring(split + 1);
+                switch (arg.substring(0, split)) {
+                    case "rps" -> options.rps = Double.parseDouble(value);
+                    case "duration" -> options.duration = Integer.parseInt(value);
+                    case "warmup" -> options.warmup = Integer.parseInt(value);
+                    case "drain" -> options.drain = Integer.parseInt(value);
+                    case "backends" -> options.backends = Integer.parseInt(value);
+                    case "workers" -> options.workers = Integer.parseInt(value);
+                    case "render" -> options.render = Long.parseLong(value);
+                    case "steps" -> options.steps = Integer.parseInt(value);
+                    case "submit-failure" -> options.submitFailure = Double.parseDouble(value);
+                    case "execution-failure" -> options.executionFailure = Double.parseDouble(value);
+                    case "image-bytes" -> options.imageBytes = Integer.parseInt(value);
+                    case "clients" -> options.clients = Integer.parseInt(value);
+                    case "idle-streams" -> options.idleStreams = Integer.parseInt(value);
+                    case "template" -> options.template = value;
+                    default -> throw new IllegalArgumentException("未知参数: " + arg);
+                }
+            }
+            return options;
+        }
+    }
+
+    /**
+     * 一个阶段的结果，耗时均为纳秒
+     */
+    static final class Stats {
+        final Queue<Long> submit = new ConcurrentLinkedQueue<>();
+        final Queue<Long> firstProgress = new ConcurrentLinkedQueue<>();
+        final Queue<Long> completed = new ConcurrentLinkedQueue<>();
+        // 首条带etaSeconds的进度预计的结束时间与实际结束时间之差
+        final Queue<Long> etaError = new ConcurrentLinkedQueue<>();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong succeeded = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong timedOut = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final Map<Integer, AtomicLong> rejected = new TreeMap<>();
+
+        synchronized void reject(int status) {
+            rejected.computeIfAbsent(status, code -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    /**
+     * 运行期间每秒采样的资源占用
+     */
+    static final class Samples {
+        final List<Long> heap = new ArrayList<>();
+        final List<Long> threads = new ArrayList<>();
+        final List<Long> sseConnections = new ArrayList<>();
+    }
+
+    private final Options options;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final LoopResources clientLoops = LoopResources.create("loadtest-client", 2, true);
+    private final List<FakeComfyUI> comfyUIs = new ArrayList<>();
+    private FakeMinio minio;
+    private ConfigurableApplicationContext context;
+    private WebClient client;
+
+    LoadTest(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // 服务启动前logback使用默认配置(DEBUG)，启动后改由服务的logback-spring.xml接管
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+        LoadTest test = new LoadTest(Options.parse(args));
+        try {
+            test.start();
+            test.run();
+        } finally {
+            test.stop();
+        }
+        System.exit(0);
+    }
+
+    private void start() throws Exception {
+        FakeComfyUI.Options fake = new FakeComfyUI.Options(options.render, options.steps, options.workers,
+                options.submitFailure, options.executionFailure, options.imageBytes);
+        List<String> args = new ArrayList<>(List.of(
+                "--server.port=0",
+                "--spring.profiles.active=loadtest",
+                "--logging.level.root=WARN",
+                // 关闭服务时Tomcat对未停止线程的提示
+                "--logging.level.org.apache.catalina.loader=ERROR",
+                "--logging.level.com.zlz.word2picture.word2picture.loadtest=INFO"));
+        for (int i = 0; i < options.backends; i++) {
+            FakeComfyUI comfyUI = new FakeComfyUI("gpu-" + i, fake);
+            comfyUIs.add(comfyUI);
+            args.add("--comfyui.backends[" + i + "].name=gpu-" + i);
+            args.add("--comfyui.backends[" + i + "].base-url=" + comfyUI.baseUrl());
+            args.add("--comfyui.backends[" + i + "].ws-url=" + comfyUI.wsUrl());
+        }
+        minio = new FakeMinio();
+        Path workDir = Files.createTempDirectory("word2picture-loadtest");
+        args.addAll(List.of(
+                "--minio.url=" + minio.url(),
+                "--minio.access=loadtest",
+                "--minio.secret=loadtest",
+                "--minio.bucket=loadtest",
+                "--task-journal.path=" + workDir.resolve("task-journal.log"),
+                "--image-variant.cache-dir=" + workDir.resolve("variants")));
+        // 命令行中的服务参数在后，可覆盖上面的默认值
+        args.addAll(options.appArgs);
+
+        context = SpringApplication.run(Word2pictureApplication.class, args.toArray(new String[0]));
+        String port = context.getEnvironment().getProperty("local.server.port");
+        String basePath = context.getEnvironment().getProperty("server.servlet.context-path", "");
+        ConnectionProvider connections = ConnectionProvider.builder("loadtest")
+                .maxConnections(Math.max(1000, options.idleStreams + 1000))
+                .pendingAcquireMaxCount(-1)
+                .build();
+        client = WebClient.builder()
+                .baseUrl("http://127.0.0.1:" + port + basePath)
+                .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connections).runOn(clientLoops)))
+                .build();
+        log.info("服务已启动: {}, 模式: {}, 参数: {}", port, mode(), options.appArgs);
+    }
+
+    private void run() {
+        if (options.idleStreams > 0) {
+            idleStreams();
+        }
+        if (options.warmup > 0) {
+            log.info("预热{}秒", options.warmup);
+            load(options.warmup, new Stats(), new Samples());
+        }
+        log.info("开始负载: {} rps, {}秒", options.rps, options.duration);
+        Stats stats = new Stats();
+        Samples samples = new Samples();
+        long start = System.nanoTime();
+        boolean drained = load(options.duration, stats, samples);
+        report(stats, samples, System.nanoTime() - start, drained);
+    }
+
+    private void stop() {
+        if (context != null) {
+            context.close();
+        }
+        comfyUIs.forEach(FakeComfyUI::close);
+        if (minio != null) {
+            minio.close();
+        }
+        clientLoops.dispose();
+    }
+
+    /**
+     * 开环负载：按固定间隔发出请求，不等待前一个请求完成；返回是否在drain时间内全部结束
+     */
+    private boolean load(int seconds, Stats stats, Samples samples) {
+        Disposable sampler = Flux.interval(Duration.ZERO, Duration.ofSeconds(1))
+                .subscribe(tick -> sample(samples));
+        try {
+            Flux.interval(Duration.ofNanos((long) (TimeUnit.SECONDS.toNanos(1) / options.rps)))
+                    .take(Duration.ofSeconds(seconds))
+                    .flatMap(index -> generate(index, stats), Integer.MAX_VALUE)
+                    .then()
+                    .block(Duration.ofSeconds(seconds + options.drain));
+            return true;
+        } catch (IllegalStateException e) {
+            log.warn("{}秒内仍有任务未结束", options.drain);
+            return false;
+        } finally {
+            sampler.dispose();
+        }
+    }
+
+    /**
+     * 提交一个任务并订阅其进度，直到SUCCESS/FAILED
+     */
+    private Mono<Void> generate(long index, Stats stats) {
+        long start = System.nanoTime();
+        stats.sent.incrementAndGet();
+        Map<String, Object> body = new HashMap<>();
+        body.put("prompt", "loadtest " + index);
+        body.put("workflowTemplate", options.template);
+        return client.post()
+                .uri("/api/image/generate")
+                .header("X-Client-Id", "loadtest-" + index % options.clients)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(body)
+                .exchangeToMono(response -> response.bodyToMono(String.class)
+                        .defaultIfEmpty("")
+                        .map(text -> {
+                            stats.submit.add(System.nanoTime() - start);
+                            if (!response.statusCode().is2xxSuccessful()) {
+                                stats.reject(response.rawStatusCode());
+                                return "";
+                            }
+                            return readTree(text).path("taskId").asText("");
+                        }))
+                .filter(taskId -> !taskId.isEmpty())
+                .flatMap(taskId -> listen(taskId, start, stats))
+                .onErrorResume(e -> {
+                    stats.errors.incrementAndGet();
+                    log.debug("请求失败: {}", e.toString());
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> listen(String taskId, long start, Stats stats) {
+        AtomicInteger running = new AtomicInteger();
+        AtomicLong predictedEnd = new AtomicLong();
+        // 排队等待和渲染都计入，超时按排队上限估算
+        Duration timeout = Duration.ofSeconds(options.duration + options.drain);
+        return client.get()
+                .uri("/api/image/listening?taskId={taskId}", taskId)
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .retrieve()
+                .bodyToFlux(SSE)
+                .filter(event -> "progress".equals(event.event()) && event.data() != null)
+                .map(event -> readTree(event.data()))
+                .doOnNext(progress -> {
+                    if ("RUNNING".equals(progress.path("status").asText()) && running.getAndIncrement() == 0) {
+                        stats.firstProgress.add(System.nanoTime() - start);
+                    }
+                    if (predictedEnd.get() == 0 && progress.path("etaSeconds").isNumber()) {
+                        predictedEnd.set(System.nanoTime() + TimeUnit.SECONDS.toNanos(progress.path("etaSeconds").asLong()));
+                    }
+                })
+                .map(progress -> progress.path("status").asText())
+                .filter(status -> "SUCCESS".equals(status) || "FAILED".equals(status))
+                .next()
+                .timeout(timeout)
+                .doOnNext(status -> {
+                    if ("SUCCESS".equals(status)) {
+                        stats.succeeded.incrementAndGet();
+                        stats.completed.add(System.nanoTime() - start);
+                        if (predictedEnd.get() != 0) {
+                            stats.etaError.add(Math.abs(System.nanoTime() - predictedEnd.get()));
+                        }
+                    } else {
+                        stats.failed.incrementAndGet();
+                    }
+                })
+                .onErrorResume(e -> {
+                    stats.timedOut.incrementAndGet();
+                    return Mono.empty();
+                })
+                .then();
+    }
+
+    /**
+     * 建立idle-streams个不会结束的进度流，GC后比较堆内存和线程数，估算每个空闲连接的开销(含客户端一侧)
+     */
+    private void idleStreams() {
+        int count = options.idleStreams;
+        long heapBefore = heapAfterGc();
+        int threadsBefore = threads.getThreadCount();
+        AtomicInteger opened = new AtomicInteger();
+        Disposable.Composite streams = Disposables.composite();
+        // 未知任务的进度流立即以"任务不存在"结束，先登记同样数量的排队中任务
+        TaskStateStore taskStateStore = context.getBean(TaskStateStore.class);
+        for (int index = 0; index < count; index++) {
+            TaskResponse task = new TaskResponse();
+            task.setTaskId("idle-" + index);
+            task.setStatus("QUEUED");
+            task.setMessage("空闲进度流");
+            taskStateStore.register(task);
+        }
+        Flux.range(0, count)
+                .flatMap(index -> {
+                    Sinks.Empty<Void> connected = Sinks.empty();
+                    streams.add(client.get()
+                            .uri("/api/image/listening?taskId={taskId}", "idle-" + index)
+                            .accept(MediaType.TEXT_EVENT_STREAM)
+                            .exchangeToFlux(response -> {
+                                opened.incrementAndGet();
+                                connected.tryEmitEmpty();
+                                return response.bodyToFlux(SSE);
+                            })
+                            .subscribe(event -> { }, e -> {
+                                connected.tryEmitEmpty();
+                                log.debug("空闲连接断开: {}", e.toString());
+                            }));
+                    return connected.asMono();
+                }, 100)
+                .then()
+                .block(Duration.ofSeconds(120));
+        sleep(2000);
+        long heapAfter = heapAfterGc();
+        int threadsAfter = threads.getThreadCount();
+        System.out.printf("%n== 空闲进度流 (%s) ==%n", mode());
+        System.out.printf("建立: %d/%d, 服务端SSE连接: %d%n", opened.get(), count, sseConnections());
+        System.out.printf("堆内存: %.1fMB -> %.1fMB, 每连接约%d字节(含客户端一侧)%n",
+                mb(heapBefore), mb(heapAfter), opened.get() == 0 ? 0 : (heapAfter - heapBefore) / opened.get());
+        System.out.printf("线程数: %d -> %d%n", threadsBefore, threadsAfter);
+        streams.dispose();
+        for (int index = 0; index < count; index++) {
+            taskStateStore.remove("idle-" + index);
+        }
+        sleep(1000);
+    }
+
+    private void report(Stats stats, Samples samples, long elapsed, boolean drained) {
+        System.out.printf("%n== 负载测试结果 (%s) ==%n", mode());
+        System.out.printf("服务参数: %s%n", options.appArgs);
+        System.out.printf("目标: %.1f rps, %d秒; 实际发出: %d (%.1f rps), 后端: %d x %d, 渲染: %dms/%d步%n",
+                options.rps, options.duration, stats.sent.get(),
+                stats.sent.get() / (options.duration == 0 ? 1.0 : options.duration),
+                options.backends, options.workers, options.render, options.steps);
+        System.out.printf("成功: %d, 失败: %d, 被拒绝: %s, 超时: %d, 请求错误: %d%s%n",
+                stats.succeeded.get(), stats.failed.get(), stats.rejected, stats.timedOut.get(), stats.errors.get(),
+                drained ? "" : ", 未在drain时间内结束");
+        System.out.println("提交延迟(ms):   " + percentiles(stats.submit));
+        System.out.println("首次进度(ms):   " + percentiles(stats.firstProgress));
+        System.out.println("完成耗时(ms):   " + percentiles(stats.completed));
+        System.out.println("预计剩余误差(ms): " + percentiles(stats.etaError));
+        System.out.printf("堆内存(MB):     平均 %.1f, 峰值 %.1f%n", mb(average(samples.heap)), mb(max(samples.heap)));
+        System.out.printf("线程数:         平均 %.0f, 峰值 %d%n", average(samples.threads), max(samples.threads));
+        System.out.printf("SSE连接:        平均 %.0f, 峰值 %d%n", average(samples.sseConnections), max(samples.sseConnections));
+        System.out.printf("MinIO对象:      %d, %.1fMB; 总耗时 %.1f秒%n",
+                minio.getObjectCount(), mb(minio.getStoredBytes()), elapsed / 1e9);
+        System.out.println("线程分组:       " + threadGroups());
+        System.out.println("节点耗时:       " + client.get().uri("/api/system/node-timings")
+                .retrieve().bodyToMono(String.class).block(Duration.ofSeconds(10)));
+    }
+
+    private void sample(Samples samples) {
+        synchronized (samples) {
+            samples.heap.add(memory.getHeapMemoryUsage().getUsed());
+            samples.threads.add((long) threads.getThreadCount());
+            samples.sseConnections.add((long) sseConnections());
+        }
+    }
+
+    private int sseConnections() {
+        return context.getBean(TaskProgressService.class).getConnectionCount();
+    }
+
+    private String mode() {
+        return context instanceof ReactiveWebServerApplicationContext ? "reactive" : "servlet";
+    }
+
+    /**
+     * 按线程名去掉编号后分组计数，便于对比Tomcat、Netty和各线程池
+     */
+    private static String threadGroups() {
+        Map<String, Long> groups = Thread.getAllStackTraces().keySet().stream()
+                .collect(Collectors.groupingBy(thread -> thread.getName().replaceAll("[-_#]?\\d+$", ""),
+                        TreeMap::new, Collectors.counting()));
+        return groups.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(12)
+                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                .collect(Collectors.joining(", "));
+    }
+
+    private static String percentiles(Collection<Long> nanos) {
+        if (nanos.isEmpty()) {
+            return "无数据";
+        }
+        long[] values = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        return String.format("p50 %.1f, p90 %.1f, p99 %.1f, max %.1f (n=%d)",
+                percentile(values, 0.5), percentile(values, 0.9), percentile(values, 0.99),
+                values[values.length - 1] / 1e6, values.length);
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static double average(List<Long> values) {
+        return values.stream().mapToLong(Long::longValue).average().orElse(0);
+    }
+
+    private static long max(List<Long> values) {
+        return values.stream().mapToLong(Long::longValue).max().orElse(0);
+    }
+
+    private long heapAfterGc() {
+        System.gc();
+        sleep(500);
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static double mb(double bytes) {
+        return bytes / (1024 * 1024);
+    }
+
+    private JsonNode readTree(String text) {
+        try {
+            return objectMapper.readTree(text);
+        } catch (Exception e) {
+            return objectMapper.createObjectNode();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
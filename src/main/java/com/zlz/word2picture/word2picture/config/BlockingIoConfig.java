@@ -0,0 +1,78 @@
+package com.zlz.word2picture.word2picture.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 阻塞I/O(MinIO、磁盘、SSE写出)的执行线程
+ * 默认使用Reactor的boundedElastic线程池；virtual-threads.enabled=true且运行在Java 21及以上时改用虚拟线程，
+ * Tomcat的请求处理线程同样换成虚拟线程。虚拟线程数量不受限，下游的并发改由各自的信号量控制(minio.max-concurrent-*)。
+ * 项目仍按Java 17编译，虚拟线程API通过反射获取
+ */
+@Slf4j
+@Configuration
+public class BlockingIoConfig {
+
+    @Value("${virtual-threads.enabled:false}")
+    private boolean enabled;
+
+    private ExecutorService virtualThreads;
+    private boolean resolved;
+
+    @Bean(destroyMethod = "dispose")
+    public Scheduler blockingIoScheduler() {
+        ExecutorService executor = virtualThreads();
+        // boundedElastic为共享实例，dispose不会关闭它
+        return executor != null ? Schedulers.fromExecutorService(executor, "virtual") : Schedulers.boundedElastic();
+    }
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadRequestHandling() {
+        return handler -> {
+            ExecutorService executor = virtualThreads();
+            if (executor != null) {
+                handler.setExecutor(executor);
+                log.info("Tomcat请求处理使用虚拟线程");
+            }
+        };
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+    }
+
+    /**
+     * 未开启或当前Java不支持时为null
+     */
+    private synchronized ExecutorService virtualThreads() {
+        if (resolved) {
+            return virtualThreads;
+        }
+        resolved = true;
+        if (!enabled) {
+            return null;
+        }
+        try {
+            virtualThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.info("阻塞I/O使用虚拟线程, Java {}", Runtime.version());
+        } catch (NoSuchMethodException e) {
+            log.warn("当前Java版本({})不支持虚拟线程，继续使用平台线程", Runtime.version());
+        } catch (ReflectiveOperationException e) {
+            log.warn("创建虚拟线程执行器失败，继续使用平台线程: {}", e.getMessage());
+        }
+        return virtualThreads;
+    }
+}
@@ -0,0 +1,110 @@
+package com.zlz.word2picture.word2picture.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ComfyUI后端池配置，未配置comfyui.backends时使用comfyui.api作为唯一后端
+ */
+@Data
+@ConfigurationProperties(prefix = "comfyui")
+public class ComfyUIProperties {
+
+    private List<Backend> backends = new ArrayList<>();
+
+    private HealthCheck healthCheck = new HealthCheck();
+
+    private Scheduler scheduler = new Scheduler();
+
+    private Http http = new Http();
+
+    private TaskRegistry taskRegistry = new TaskRegistry();
+
+    private Warmup warmup = new Warmup();
+
+    @Data
+    public static class Backend {
+        private String name;
+        private String baseUrl;
+        private String wsUrl;
+    }
+
+    @Data
+    public static class HealthCheck {
+        // 健康检查（/queue）间隔，毫秒
+        private long interval = 10000;
+        // 连续失败多少次后摘除该后端
+        private int failureThreshold = 3;
+        // 单次检查超时，毫秒
+        private long timeout = 5000;
+    }
+
+    @Data
+    public static class Scheduler {
+        // 每个后端同时提交(排队+执行中)的任务数上限，其余任务在本服务内排队
+        private int maxConcurrentPerBackend = 2;
+        // 本服务内等待队列的长度上限，超过时直接返回429
+        private int maxQueueSize = 200;
+        // 已提交任务未收到结束事件时，最长占用后端名额的时间，毫秒
+        private long maxRunningTime = 600000;
+    }
+
+    @Data
+    public static class TaskRegistry {
+        // 内存中最多保留的任务数，超过时按访问频率淘汰(W-TinyLFU)
+        private long maxSize = 50000;
+        // 未结束任务自登记起的保留时间，需大于scheduler.max-running-time与排队时间之和，毫秒；
+        // 进度通道和websocket事件订阅无活动超过该时间也会被清理
+        private long activeTtl = 21600000;
+        // 已完成/失败任务的保留时间，毫秒；过期后查询回退到ComfyUI的/history
+        private long finishedTtl = 3600000;
+    }
+
+    /**
+     * 模型预热：启动、后端重连/恢复时，以及模板在某个后端空闲超过idle-threshold时，提交低分辨率、少步数的模板变体
+     */
+    @Data
+    public static class Warmup {
+        private boolean enabled = true;
+        // 需要预热的模板，为空时预热全部已注册模板
+        private List<String> templates = new ArrayList<>();
+        // 预热使用的宽高和采样步数
+        private int size = 64;
+        private int steps = 1;
+        // 模板在某个后端上超过该时间未执行时重新预热，毫秒
+        private long idleThreshold = 1800000;
+        // 检查空闲模板的间隔，毫秒
+        private long checkInterval = 300000;
+    }
+
+    @Data
+    public static class Http {
+        // 每个后端连接池的最大连接数及等待获取连接的请求数上限
+        private int maxConnections = 64;
+        private int pendingAcquireMaxCount = 256;
+        // 以下时间均为毫秒
+        private long pendingAcquireTimeout = 10000;
+        // 空闲连接保留时间，需小于ComfyUI(aiohttp)的keep-alive超时
+        private long maxIdleTime = 30000;
+        private long maxLifeTime = 300000;
+        private int connectTimeout = 5000;
+        // 响应超时，未配置时使用comfyui.api.default-timeout
+        private Long responseTimeout;
+        // 响应体读入内存(bodyToMono)的上限，/history的响应可能较大
+        private int maxInMemorySize = 16 * 1024 * 1024;
+        private Retry retry = new Retry();
+    }
+
+    /**
+     * 幂等请求(GET/HEAD)在连接失败或502/503/504时的重试
+     */
+    @Data
+    public static class Retry {
+        private int maxAttempts = 2;
+        private long minBackoff = 200;
+        private double jitter = 0.5;
+    }
+}
@@ -0,0 +1,210 @@
+package com.zlz.word2picture.word2picture.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.netty.channel.ChannelOption;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.*;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PreDestroy;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * WebClient工厂
+ * 每个下游(ComfyUI后端、外部图片源)一个命名的连接池，连接/响应超时、内存缓冲上限和幂等请求重试均来自comfyui.http配置，
+ * 连接池的实时指标通过getPoolMetrics()获取，并注册为word2picture.http.pool.*指标：
+ * 固定下游(设置了baseUrl)按pool、remote标记；请求任意URL的连接池只按pool汇总，远端地址不进入指标标签，避免时间序列无限增长
+ */
+@Slf4j
+@Component
+public class HttpClientFactory {
+
+    /**
+     * 请求属性：设置后该请求不重试，例如需要如实统计失败次数的健康检查
+     */
+    public static final String NO_RETRY = HttpClientFactory.class.getName() + ".NO_RETRY";
+
+    private static final Set<HttpStatus> RETRYABLE_STATUS = EnumSet.of(
+            HttpStatus.BAD_GATEWAY, HttpStatus.SERVICE_UNAVAILABLE, HttpStatus.GATEWAY_TIMEOUT);
+
+    @Autowired
+    private ComfyUIProperties properties;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Value("${comfyui.api.default-timeout:30000}")
+    private long defaultTimeout;
+
+    private final List<ConnectionProvider> providers = new ArrayList<>();
+    // 连接池名 -> (远端地址 -> 指标)
+    private final Map<String, Map<SocketAddress, ConnectionPoolMetrics>> poolMetrics = new ConcurrentHashMap<>();
+    private final Map<String, List<Meter>> poolGauges = new ConcurrentHashMap<>();
+    // 请求任意URL、只注册汇总指标的连接池
+    private final Set<String> aggregatedPools = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 创建使用独立连接池的WebClient
+     *
+     * @param name    连接池名称
+     * @param baseUrl 为空时不设置，此时视为请求任意URL的客户端，连接池指标只按名称汇总
+     */
+    public synchronized WebClient create(String name, String baseUrl) {
+        ComfyUIProperties.Http http = properties.getHttp();
+        if (baseUrl == null) {
+            aggregatedPools.add(name);
+            registerAggregateGauges(name);
+        }
+        ConnectionProvider.Builder providerBuilder = ConnectionProvider.builder(name)
+                .maxConnections(http.getMaxConnections())
+                .pendingAcquireMaxCount(http.getPendingAcquireMaxCount())
+                .pendingAcquireTimeout(Duration.ofMillis(http.getPendingAcquireTimeout()))
+                .maxIdleTime(Duration.ofMillis(http.getMaxIdleTime()))
+                .maxLifeTime(Duration.ofMillis(http.getMaxLifeTime()))
+                .evictInBackground(Duration.ofMillis(http.getMaxIdleTime()))
+                .metrics(true, () -> new ConnectionProvider.MeterRegistrar() {
+                    @Override
+                    public void registerMetrics(String poolName, String id, SocketAddress remoteAddress, ConnectionPoolMetrics metrics) {
+                        poolMetrics.computeIfAbsent(poolName, key -> new ConcurrentHashMap<>()).put(remoteAddress, metrics);
+                        if (!aggregatedPools.contains(poolName)) {
+                            registerGauges(poolName, remoteAddress, metrics);
+                        }
+                    }
+
+                    @Override
+                    public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+                        poolMetrics.computeIfPresent(poolName, (key, pools) -> {
+                            pools.remove(remoteAddress);
+                            return pools.isEmpty() ? null : pools;
+                        });
+                        List<Meter> meters = poolGauges.remove(poolName + "|" + remoteAddress);
+                        if (meters != null) {
+                            meters.forEach(meterRegistry::remove);
+                        }
+                    }
+                });
+        if (baseUrl == null) {
+            // 每个远端地址各有一个子连接池，空闲的子连接池定期释放，getPoolMetrics()中的远端列表随之收缩
+            providerBuilder.disposeInactivePoolsInBackground(Duration.ofMillis(http.getMaxIdleTime()),
+                    Duration.ofMillis(http.getMaxIdleTime()));
+        }
+        ConnectionProvider provider = providerBuilder.build();
+        providers.add(provider);
+
+        long responseTimeout = http.getResponseTimeout() != null ? http.getResponseTimeout() : defaultTimeout;
+        HttpClient httpClient = HttpClient.create(provider)
+                .keepAlive(true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, http.getConnectTimeout())
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .responseTimeout(Duration.ofMillis(responseTimeout));
+
+        WebClient.Builder builder = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .exchangeStrategies(ExchangeStrategies.builder()
+                        .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(http.getMaxInMemorySize()))
+                        .build())
+                .filter(retryIdempotent(http.getRetry()));
+        if (baseUrl != null) {
+            builder.baseUrl(baseUrl);
+        }
+        log.info("HTTP连接池[{}]: maxConnections={}, responseTimeout={}ms", name, http.getMaxConnections(), responseTimeout);
+        return builder.build();
+    }
+
+    /**
+     * 连接池名 -> 各远端地址的实时指标
+     */
+    public Map<String, Map<SocketAddress, ConnectionPoolMetrics>> getPoolMetrics() {
+        return Collections.unmodifiableMap(poolMetrics);
+    }
+
+    private void registerGauges(String poolName, SocketAddress remoteAddress, ConnectionPoolMetrics metrics) {
+        Tags tags = Tags.of("pool", poolName, "remote", String.valueOf(remoteAddress));
+        List<Meter> meters = new ArrayList<>();
+        meters.add(Gauge.builder("word2picture.http.pool.acquired", metrics, ConnectionPoolMetrics::acquiredSize)
+                .tags(tags).register(meterRegistry));
+        meters.add(Gauge.builder("word2picture.http.pool.allocated", metrics, ConnectionPoolMetrics::allocatedSize)
+                .tags(tags).register(meterRegistry));
+        meters.add(Gauge.builder("word2picture.http.pool.idle", metrics, ConnectionPoolMetrics::idleSize)
+                .tags(tags).register(meterRegistry));
+        meters.add(Gauge.builder("word2picture.http.pool.pending", metrics, ConnectionPoolMetrics::pendingAcquireSize)
+                .tags(tags).register(meterRegistry));
+        meters.add(Gauge.builder("word2picture.http.pool.max", metrics, ConnectionPoolMetrics::maxAllocatedSize)
+                .tags(tags).register(meterRegistry));
+        poolGauges.put(poolName + "|" + remoteAddress, meters);
+    }
+
+    /**
+     * 任意URL的连接池：各远端子连接池的指标求和，只带pool标签
+     */
+    private void registerAggregateGauges(String poolName) {
+        Tags tags = Tags.of("pool", poolName);
+        Gauge.builder("word2picture.http.pool.acquired", () -> sum(poolName, ConnectionPoolMetrics::acquiredSize))
+                .tags(tags).register(meterRegistry);
+        Gauge.builder("word2picture.http.pool.allocated", () -> sum(poolName, ConnectionPoolMetrics::allocatedSize))
+                .tags(tags).register(meterRegistry);
+        Gauge.builder("word2picture.http.pool.idle", () -> sum(poolName, ConnectionPoolMetrics::idleSize))
+                .tags(tags).register(meterRegistry);
+        Gauge.builder("word2picture.http.pool.pending", () -> sum(poolName, ConnectionPoolMetrics::pendingAcquireSize))
+                .tags(tags).register(meterRegistry);
+        Gauge.builder("word2picture.http.pool.max", () -> sum(poolName, ConnectionPoolMetrics::maxAllocatedSize))
+                .tags(tags).register(meterRegistry);
+    }
+
+    private int sum(String poolName, ToIntFunction<ConnectionPoolMetrics> value) {
+        Map<SocketAddress, ConnectionPoolMetrics> remotes = poolMetrics.get(poolName);
+        return remotes == null ? 0 : remotes.values().stream().mapToInt(value).sum();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        providers.forEach(ConnectionProvider::dispose);
+    }
+
+    /**
+     * GET/HEAD请求在连接失败或网关类错误时按带抖动的指数退避重试
+     */
+    private static ExchangeFilterFunction retryIdempotent(ComfyUIProperties.Retry retry) {
+        return (request, next) -> {
+            boolean idempotent = request.method() == HttpMethod.GET || request.method() == HttpMethod.HEAD;
+            if (!idempotent || retry.getMaxAttempts() <= 0 || request.attribute(NO_RETRY).isPresent()) {
+                return next.exchange(request);
+            }
+            return Mono.defer(() -> next.exchange(request))
+                    .flatMap(response -> {
+                        HttpStatus status = HttpStatus.resolve(response.rawStatusCode());
+                        if (status != null && RETRYABLE_STATUS.contains(status)) {
+                            return response.releaseBody().then(Mono.error(new RetryableStatusException(request, status)));
+                        }
+                        return Mono.just(response);
+                    })
+                    .retryWhen(Retry.backoff(retry.getMaxAttempts(), Duration.ofMillis(retry.getMinBackoff()))
+                            .jitter(retry.getJitter())
+                            .filter(e -> e instanceof WebClientRequestException || e instanceof RetryableStatusException)
+                            .doBeforeRetry(signal -> log.warn("重试请求: {} {}, 第{}次, {}", request.method(), request.url(),
+                                    signal.totalRetries() + 1, signal.failure().getMessage()))
+                            .onRetryExhaustedThrow((spec, signal) -> signal.failure()));
+        };
+    }
+
+    private static final class RetryableStatusException extends RuntimeException {
+        RetryableStatusException(ClientRequest request, HttpStatus status) {
+            super(request.method() + " " + request.url() + " 返回 " + status.value());
+        }
+    }
+}
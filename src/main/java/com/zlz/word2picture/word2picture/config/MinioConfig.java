@@ -1,18 +1,16 @@
 package com.zlz.word2picture.word2picture.config;
 
-import io.minio.BucketExistsArgs;
 import io.minio.MinioClient;
-import io.minio.errors.*;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.context.annotation.Lazy;
 
-import java.io.IOException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Configuration
@@ -26,20 +24,47 @@ public class MinioConfig {
     private String access;
     @Value("${minio.secret}")
     private String secret;
-    @Lazy
+    // MinIO HTTP客户端的连接池和超时(毫秒)
+    @Value("${minio.http.max-idle-connections:16}")
+    private int maxIdleConnections;
+    @Value("${minio.http.keep-alive:300000}")
+    private long keepAlive;
+    @Value("${minio.http.max-requests-per-host:32}")
+    private int maxRequestsPerHost;
+    @Value("${minio.http.connect-timeout:5000}")
+    private long connectTimeout;
+    @Value("${minio.http.read-timeout:60000}")
+    private long readTimeout;
+    @Value("${minio.http.write-timeout:60000}")
+    private long writeTimeout;
+
+    /**
+     * 替换MinIO默认的OkHttpClient(5分钟超时、单主机5个并发请求)
+     */
+    public OkHttpClient minioHttpClient() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Math.max(maxRequestsPerHost, dispatcher.getMaxRequests()));
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAlive, TimeUnit.MILLISECONDS))
+                .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(writeTimeout, TimeUnit.MILLISECONDS)
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+
+    /**
+     * 只构建客户端，不访问MinIO；桶的检查和创建由ReadinessChecks在后台完成，MinIO不可用时不阻塞启动
+     */
     @Bean(name="minioClient")
-    public MinioClient minioClient() throws ServerException, InsufficientDataException, ErrorResponseException, IOException, NoSuchAlgorithmException, InvalidKeyException, InvalidResponseException, XmlParserException, InternalException {
-        log.info("minioUrl:{},bucket:{},access:{},secret:{}",minioUrl,bucket,access,secret);
-        MinioClient minioClient = MinioClient.builder()
+    public MinioClient minioClient() {
+        log.info("minioUrl:{},bucket:{},access:{}",minioUrl,bucket,access);
+        return MinioClient.builder()
                 .endpoint(minioUrl)
                 .credentials(access, secret)
+                .httpClient(minioHttpClient())
                 .build();
-        boolean exist = minioClient.bucketExists(BucketExistsArgs.builder().bucket(bucket).build());
-        if (!exist) {
-            minioClient.makeBucket(io.minio.MakeBucketArgs.builder().bucket(bucket).build());
-        }else {
-            log.info("bucket:{}已存在",bucket);
-        }
-        return minioClient;
     }
 }
@@ -0,0 +1,100 @@
+package com.zlz.word2picture.word2picture.config;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.zlz.word2picture.word2picture.service.*;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.function.Supplier;
+
+/**
+ * 生成链路的状态类指标：SSE连接、ComfyUI后端、调度队列、任务表和各级缓存
+ * 采集时才读取各组件的当前值
+ * 不实现MeterBinder：Boot 2.7在创建MeterRegistry时就绑定MeterBinder，而这里依赖的服务本身又注入了MeterRegistry，会形成循环依赖
+ */
+@Component
+public class PipelineGauges {
+
+    @Autowired
+    private MeterRegistry registry;
+    @Autowired
+    private TaskProgressService taskProgressService;
+    @Autowired
+    private ComfyUIBackendPool backendPool;
+    @Autowired
+    private GenerationScheduler generationScheduler;
+    @Autowired
+    private TaskStateStore taskStateStore;
+    @Autowired
+    private ImageIngestService imageIngestService;
+    @Autowired
+    private ResultCacheService resultCacheService;
+    @Autowired
+    private ImageVariantService imageVariantService;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("word2picture.sse.connections", taskProgressService, TaskProgressService::getConnectionCount)
+                .description("当前SSE连接数")
+                .register(registry);
+        Gauge.builder("word2picture.scheduler.waiting", generationScheduler, GenerationScheduler::getWaitingCount)
+                .description("调度队列中等待的任务数")
+                .register(registry);
+        Gauge.builder("word2picture.tasks.size", taskStateStore, TaskStateStore::size)
+                .description("内存中的任务记录数")
+                .register(registry);
+        Gauge.builder("word2picture.progress.channels", taskProgressService, TaskProgressService::getChannelCount)
+                .description("进度通道数")
+                .register(registry);
+
+        for (ComfyUIBackend backend : backendPool.getBackends()) {
+            String name = backend.getName();
+            Gauge.builder("word2picture.comfyui.backend.healthy", backend, b -> b.isHealthy() ? 1 : 0)
+                    .tag("backend", name)
+                    .register(registry);
+            Gauge.builder("word2picture.comfyui.queue.remaining", backend, ComfyUIBackend::getQueueRemaining)
+                    .tag("backend", name)
+                    .register(registry);
+            Gauge.builder("word2picture.comfyui.websocket.connected", backend,
+                            b -> b.getEventChannel().isConnected() ? 1 : 0)
+                    .tag("backend", name)
+                    .register(registry);
+            Gauge.builder("word2picture.comfyui.websocket.subscriptions", backend,
+                            b -> b.getEventChannel().getSubscribedTaskCount())
+                    .tag("backend", name)
+                    .register(registry);
+            Gauge.builder("word2picture.scheduler.running", generationScheduler, s -> s.getRunningCount(name))
+                    .tag("backend", name)
+                    .register(registry);
+        }
+
+        bindCache(registry, "image-url", imageIngestService::urlCacheStats);
+        bindCache(registry, "image-hash", imageIngestService::hashCacheStats);
+        bindCache(registry, "result", resultCacheService::stats);
+        bindCache(registry, "task-registry", taskStateStore::stats);
+        bindCache(registry, "variant-disk", imageVariantService::diskCacheStats);
+        Gauge.builder("word2picture.variant.disk.bytes", imageVariantService, ImageVariantService::diskCacheBytes)
+                .description("缩略图/格式变体磁盘缓存占用")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /**
+     * 按Micrometer缓存指标的命名注册命中/未命中/淘汰计数
+     */
+    private static void bindCache(MeterRegistry registry, String cache, Supplier<CacheStats> stats) {
+        FunctionCounter.builder("cache.gets", stats, s -> s.get().hitCount())
+                .tag("cache", cache).tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("cache.gets", stats, s -> s.get().missCount())
+                .tag("cache", cache).tag("result", "miss")
+                .register(registry);
+        FunctionCounter.builder("cache.evictions", stats, s -> s.get().evictionCount())
+                .tag("cache", cache)
+                .register(registry);
+    }
+}
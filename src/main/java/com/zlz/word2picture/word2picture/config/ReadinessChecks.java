@@ -0,0 +1,111 @@
+package com.zlz.word2picture.word2picture.config;
+
+import com.zlz.word2picture.word2picture.service.ComfyUIBackend;
+import com.zlz.word2picture.word2picture.service.ComfyUIBackendPool;
+import com.zlz.word2picture.word2picture.util.MinioUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 启动阶段的外部依赖检查，结果作为minio、comfyui两项计入/actuator/health/readiness
+ * 创建Bean时不再同步访问MinIO：桶的检查和创建在阻塞I/O线程上按间隔重试，直到成功；ComfyUI至少一个后端健康检查成功后就绪。
+ * 两项只在启动阶段把关，通过后保持UP：所有实例共用同一MinIO和ComfyUI，运行中因依赖故障摘除实例只会让全部实例同时下线
+ */
+@Slf4j
+@Configuration
+public class ReadinessChecks {
+
+    @Autowired
+    private MinioUtil minioUtil;
+    @Autowired
+    private ComfyUIBackendPool backendPool;
+    @Autowired
+    private Scheduler blockingIoScheduler;
+    @Autowired
+    private ApplicationAvailability availability;
+
+    @Value("${minio.bucket}")
+    private String bucket;
+    // MinIO检查失败后的重试间隔，毫秒
+    @Value("${readiness.retry-interval:5000}")
+    private long retryInterval;
+
+    private volatile Health minio = Health.down().withDetail("bucket", "检查中").build();
+    private Disposable minioCheck;
+    private Disposable readyLog;
+
+    /**
+     * 与上下文的其余初始化并行进行
+     */
+    @PostConstruct
+    public void init() {
+        minioCheck = Mono.fromCallable(() -> {
+                    minioUtil.ensureBucket();
+                    return Health.up().withDetail("bucket", bucket).build();
+                })
+                .subscribeOn(blockingIoScheduler)
+                .doOnError(e -> {
+                    log.warn("MinIO检查失败，{}ms后重试: {}", retryInterval, e.getMessage());
+                    minio = Health.down().withDetail("bucket", bucket).withDetail("error", String.valueOf(e.getMessage())).build();
+                })
+                .retryWhen(Retry.fixedDelay(Long.MAX_VALUE, Duration.ofMillis(retryInterval)))
+                .subscribe(health -> minio = health);
+        // 记录从JVM启动到可以接收流量(应用启动完成且依赖检查全部通过)的耗时
+        readyLog = Flux.interval(Duration.ofMillis(100))
+                .filter(tick -> availability.getReadinessState() == ReadinessState.ACCEPTING_TRAFFIC
+                        && Status.UP.equals(minio.getStatus()) && comfyuiReachable())
+                .next()
+                .subscribe(tick -> log.info("外部依赖检查通过，可以接收流量，JVM启动后{}ms",
+                        ManagementFactory.getRuntimeMXBean().getUptime()));
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (minioCheck != null) {
+            minioCheck.dispose();
+        }
+        if (readyLog != null) {
+            readyLog.dispose();
+        }
+    }
+
+    @Bean
+    public HealthIndicator minioHealthIndicator() {
+        return () -> minio;
+    }
+
+    @Bean
+    public HealthIndicator comfyuiHealthIndicator() {
+        return () -> {
+            Map<String, Object> backends = new LinkedHashMap<>();
+            for (ComfyUIBackend backend : backendPool.getBackends()) {
+                backends.put(backend.getName(), !backend.isReachable() ? "检查中" : backend.isHealthy() ? "UP" : "DOWN");
+            }
+            return (comfyuiReachable() ? Health.up() : Health.down()).withDetails(backends).build();
+        };
+    }
+
+    private boolean comfyuiReachable() {
+        return backendPool.getBackends().stream().anyMatch(ComfyUIBackend::isReachable);
+    }
+}
@@ -0,0 +1,24 @@
+package com.zlz.word2picture.word2picture.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * 生成AppCDS归档的训练运行：startup.training-run=true时启动完成后立即退出，由-XX:ArchiveClassesAtExit在JVM退出时写出归档
+ * Boot 2.7没有spring.context.exit=onRefresh，这里在ApplicationReadyEvent后退出，归档同时包含启动期间加载的全部类
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty("startup.training-run")
+public class TrainingRun {
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void exit(ApplicationReadyEvent event) {
+        log.info("训练运行结束，退出");
+        System.exit(SpringApplication.exit(event.getApplicationContext()));
+    }
+}
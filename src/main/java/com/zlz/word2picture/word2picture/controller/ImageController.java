@@ -1,45 +1,102 @@
 package com.zlz.word2picture.word2picture.controller;
 
+import com.zlz.word2picture.word2picture.model.BatchGenerateRequest;
+import com.zlz.word2picture.word2picture.model.BatchResponse;
 import com.zlz.word2picture.word2picture.model.GenerateImageRequest;
 import com.zlz.word2picture.word2picture.model.TaskResponse;
+import com.zlz.word2picture.word2picture.service.BatchService;
 import com.zlz.word2picture.word2picture.service.ComfyUIService;
+import com.zlz.word2picture.word2picture.service.GenerationScheduler;
+import com.zlz.word2picture.word2picture.service.ImageVariantService;
 import com.zlz.word2picture.word2picture.service.TaskProgressService;
 import com.zlz.word2picture.word2picture.util.MinioUtil;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import reactor.core.publisher.Mono;
 
 import jakarta.validation.Valid;
+import javax.servlet.http.HttpServletRequest;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Servlet(Tomcat)模式的接口；响应式(Netty)模式下由ReactiveImageController提供相同的接口
+ */
 @Slf4j
 @RestController
 @RequestMapping("/api/image")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class ImageController {
+    // 排队已满或没有可用后端时建议客户端的重试间隔
+    static final int RETRY_AFTER_SECONDS = 5;
+
     @Autowired
     private ComfyUIService comfyUIService;
     @Autowired
+    private GenerationScheduler generationScheduler;
+    @Autowired
+    private BatchService batchService;
+    @Autowired
+    private ImageVariantService imageVariantService;
+    @Autowired
     private TaskProgressService taskProgressService;
     @Autowired
     private MinioUtil minioUtil;
 
     @PostMapping("/generate")
-    public Mono<ResponseEntity<TaskResponse>> generateImage(@Valid @RequestBody GenerateImageRequest request) {
+    public Mono<ResponseEntity<TaskResponse>> generateImage(@Valid @RequestBody GenerateImageRequest request,
+                                                            @RequestHeader(value = "X-Client-Id", required = false) String clientKey,
+                                                            HttpServletRequest httpRequest) {
         log.info("工作流模板: {}", request.getWorkflowTemplate());
 
-        return comfyUIService.generateImage(request)
+        // 未携带客户端标识时按来源IP公平排队
+        return generationScheduler.submit(request, clientKey != null ? clientKey : httpRequest.getRemoteAddr())
                 .map(taskResponse -> ResponseEntity.ok(taskResponse))
-                .onErrorReturn(ResponseEntity.status(500).body(createErrorResponse("图像生成失败")));
+                .onErrorResume(ResponseStatusException.class, e -> Mono.just(errorStatus(e)
+                        .body(TaskResponse.error(e.getReason()))))
+                .onErrorReturn(ResponseEntity.status(500).body(TaskResponse.error("图像生成失败")));
     }
+    /**
+     * 批量生成：逐个列出任务，或按prompts × seeds矩阵展开
+     */
+    @PostMapping("/generate/batch")
+    public Mono<ResponseEntity<BatchResponse>> generateBatch(@RequestBody BatchGenerateRequest request,
+                                                             @RequestHeader(value = "X-Client-Id", required = false) String clientKey,
+                                                             HttpServletRequest httpRequest) {
+        return batchService.submit(request, clientKey != null ? clientKey : httpRequest.getRemoteAddr())
+                .map(batchResponse -> ResponseEntity.ok(batchResponse))
+                .onErrorResume(ResponseStatusException.class, e -> Mono.just(errorStatus(e)
+                        .body(BatchResponse.error(e.getReason()))))
+                .onErrorReturn(ResponseEntity.status(500).body(BatchResponse.error("批量生成失败")));
+    }
+
+    @GetMapping("/generate/batch/{batchId}")
+    public Mono<ResponseEntity<BatchResponse>> getBatch(@PathVariable String batchId) {
+        return batchService.get(batchId)
+                .map(batchResponse -> ResponseEntity.ok(batchResponse))
+                .defaultIfEmpty(ResponseEntity.status(404).body(BatchResponse.error("批量任务不存在")));
+    }
+
+    @GetMapping(value = "/generate/batch/{batchId}/listening", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter listenBatch(@PathVariable String batchId) {
+        return batchService.register(batchId);
+    }
+
     @GetMapping(value = "/listening", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter listen(@RequestParam String taskId, @RequestParam String clientId) {
+    public SseEmitter listen(@RequestParam String taskId, @RequestParam(required = false) String clientId) {
         SseEmitter register = taskProgressService.register(taskId);
         taskProgressService.startListening(clientId,taskId);
         return register;
@@ -50,30 +107,45 @@ public class ImageController {
 
         return comfyUIService.getTaskStatus(taskId)
                 .map(taskResponse -> ResponseEntity.ok(taskResponse))
-                .onErrorReturn(ResponseEntity.status(500).body(createErrorResponse("查询任务状态失败")));
+                .onErrorReturn(ResponseEntity.status(500).body(TaskResponse.error("查询任务状态失败")));
     }
 
-    private TaskResponse createErrorResponse(String message) {
-        TaskResponse errorResponse = new TaskResponse();
-        errorResponse.setStatus("ERROR");
-        errorResponse.setMessage(message);
-        return errorResponse;
+    @GetMapping("/result/{taskId}")
+    public Mono<ResponseEntity<Map<String, String>>> getResult(@PathVariable String taskId) {
+        return comfyUIService.getImagePreviewUrl(taskId)
+                .defaultIfEmpty("")
+                .map(imagePreviewUrl -> {
+                    log.debug("----imageurl:{}", imagePreviewUrl);
+                    Map<String,String> map = new HashMap<>();
+                    map.put("imageUrl", imagePreviewUrl.isEmpty() ? null : imagePreviewUrl);
+                    return ResponseEntity.ok(map);
+                });
     }
 
-    @GetMapping("/result/{taskId}")
-    public ResponseEntity<?> getResult(@PathVariable String taskId) {
-        String imagePreviewUrl = comfyUIService.getImagePreviewUrl(taskId);
-        System.out.println("----imageurl:"+imagePreviewUrl);
-        Map<String,String> map = new HashMap<>();
-        map.put("imageUrl", imagePreviewUrl);
-        return ResponseEntity.ok(map);
+    /**
+     * 结果图片的缩略图/格式变体，例如 ?w=512&format=webp
+     */
+    @GetMapping("/result/{taskId}/variant")
+    public Mono<ResponseEntity<StreamingResponseBody>> getVariant(@PathVariable String taskId,
+                                                                  @RequestParam(required = false) Integer w,
+                                                                  @RequestParam(required = false) String format) {
+        return imageVariantService.variant(taskId, w, format)
+                .map(file -> {
+                    StreamingResponseBody body = out -> ImageVariantService.transfer(file, out);
+                    return ResponseEntity.ok()
+                            .contentType(MediaType.parseMediaType(ImageVariantService.contentType(file)))
+                            .cacheControl(CacheControl.maxAge(30, TimeUnit.DAYS).cachePublic())
+                            .body(body);
+                })
+                .onErrorResume(ResponseStatusException.class, e -> Mono.just(ResponseEntity.status(e.getStatus()).build()))
+                .onErrorReturn(ResponseEntity.status(500).build());
     }
 
     @PostMapping("/upload")
     public ResponseEntity<?> uploadImage(@RequestParam("file") MultipartFile file) {
         try {
-            // 保存文件到MinIO
-            String fileName = minioUtil.uploadToMinio(file.getBytes(), file.getOriginalFilename(), file.getContentType());
+            // 保存文件到MinIO：从落盘的临时文件流式读取，相同内容只保存一份
+            String fileName = minioUtil.uploadDeduplicated(file, file.getSize(), file.getOriginalFilename(), file.getContentType());
 
             var url = minioUtil.getFileUrl(fileName);
 
@@ -82,4 +154,15 @@ public class ImageController {
             return ResponseEntity.status(500).body("上传失败: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 请求被拒绝时的响应状态；排队已满(429)或没有可用后端(503)时附带Retry-After
+     */
+    static ResponseEntity.BodyBuilder errorStatus(ResponseStatusException e) {
+        ResponseEntity.BodyBuilder builder = ResponseEntity.status(e.getStatus());
+        if (e.getStatus() == HttpStatus.TOO_MANY_REQUESTS || e.getStatus() == HttpStatus.SERVICE_UNAVAILABLE) {
+            builder.header(HttpHeaders.RETRY_AFTER, String.valueOf(RETRY_AFTER_SECONDS));
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,181 @@
+package com.zlz.word2picture.word2picture.controller;
+
+import com.zlz.word2picture.word2picture.model.BatchGenerateRequest;
+import com.zlz.word2picture.word2picture.model.BatchProgress;
+import com.zlz.word2picture.word2picture.model.BatchResponse;
+import com.zlz.word2picture.word2picture.model.GenerateImageRequest;
+import com.zlz.word2picture.word2picture.model.TaskProgress;
+import com.zlz.word2picture.word2picture.model.TaskResponse;
+import com.zlz.word2picture.word2picture.service.BatchService;
+import com.zlz.word2picture.word2picture.service.ComfyUIService;
+import com.zlz.word2picture.word2picture.service.GenerationScheduler;
+import com.zlz.word2picture.word2picture.service.ImageVariantService;
+import com.zlz.word2picture.word2picture.service.TaskProgressService;
+import com.zlz.word2picture.word2picture.util.MinioUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import jakarta.validation.Valid;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 响应式(Netty)模式的接口，与ImageController的路径和返回内容一致
+ * 进度流直接返回Flux，空闲连接不占用线程和异步Servlet上下文
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/image")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveImageController {
+
+    @Autowired
+    private ComfyUIService comfyUIService;
+    @Autowired
+    private GenerationScheduler generationScheduler;
+    @Autowired
+    private BatchService batchService;
+    @Autowired
+    private ImageVariantService imageVariantService;
+    @Autowired
+    private TaskProgressService taskProgressService;
+    @Autowired
+    private MinioUtil minioUtil;
+    @Autowired
+    private Scheduler blockingIoScheduler;
+
+    @PostMapping("/generate")
+    public Mono<ResponseEntity<TaskResponse>> generateImage(@Valid @RequestBody GenerateImageRequest request,
+                                                            @RequestHeader(value = "X-Client-Id", required = false) String clientKey,
+                                                            ServerHttpRequest httpRequest) {
+        log.info("工作流模板: {}", request.getWorkflowTemplate());
+
+        // 未携带客户端标识时按来源IP公平排队
+        return generationScheduler.submit(request, clientKey != null ? clientKey : remoteAddress(httpRequest))
+                .map(taskResponse -> ResponseEntity.ok(taskResponse))
+                .onErrorResume(ResponseStatusException.class, e -> Mono.just(ImageController.errorStatus(e)
+                        .body(TaskResponse.error(e.getReason()))))
+                .onErrorReturn(ResponseEntity.status(500).body(TaskResponse.error("图像生成失败")));
+    }
+
+    @PostMapping("/generate/batch")
+    public Mono<ResponseEntity<BatchResponse>> generateBatch(@RequestBody BatchGenerateRequest request,
+                                                             @RequestHeader(value = "X-Client-Id", required = false) String clientKey,
+                                                             ServerHttpRequest httpRequest) {
+        return batchService.submit(request, clientKey != null ? clientKey : remoteAddress(httpRequest))
+                .map(batchResponse -> ResponseEntity.ok(batchResponse))
+                .onErrorResume(ResponseStatusException.class, e -> Mono.just(ImageController.errorStatus(e)
+                        .body(BatchResponse.error(e.getReason()))))
+                .onErrorReturn(ResponseEntity.status(500).body(BatchResponse.error("批量生成失败")));
+    }
+
+    @GetMapping("/generate/batch/{batchId}")
+    public Mono<ResponseEntity<BatchResponse>> getBatch(@PathVariable String batchId) {
+        return batchService.get(batchId)
+                .map(batchResponse -> ResponseEntity.ok(batchResponse))
+                .defaultIfEmpty(ResponseEntity.status(404).body(BatchResponse.error("批量任务不存在")));
+    }
+
+    @GetMapping(value = "/generate/batch/{batchId}/listening", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<BatchProgress>> listenBatch(@PathVariable String batchId) {
+        return batchService.listen(batchId);
+    }
+
+    @GetMapping(value = "/listening", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<TaskProgress>> listen(@RequestParam String taskId, @RequestParam(required = false) String clientId) {
+        Flux<ServerSentEvent<TaskProgress>> events = taskProgressService.listen(taskId);
+        taskProgressService.startListening(clientId, taskId);
+        return events;
+    }
+
+    @GetMapping("/task-status/{taskId}")
+    public Mono<ResponseEntity<TaskResponse>> getTaskStatus(@PathVariable String taskId) {
+        log.info("查询任务状态: {}", taskId);
+
+        return comfyUIService.getTaskStatus(taskId)
+                .map(taskResponse -> ResponseEntity.ok(taskResponse))
+                .onErrorReturn(ResponseEntity.status(500).body(TaskResponse.error("查询任务状态失败")));
+    }
+
+    @GetMapping("/result/{taskId}")
+    public Mono<ResponseEntity<Map<String, String>>> getResult(@PathVariable String taskId) {
+        return comfyUIService.getImagePreviewUrl(taskId)
+                .defaultIfEmpty("")
+                .map(imagePreviewUrl -> {
+                    Map<String, String> map = new HashMap<>();
+                    map.put("imageUrl", imagePreviewUrl.isEmpty() ? null : imagePreviewUrl);
+                    return ResponseEntity.ok(map);
+                });
+    }
+
+    /**
+     * 结果图片的缩略图/格式变体；文件资源由Netty零拷贝写出
+     */
+    @GetMapping("/result/{taskId}/variant")
+    public Mono<ResponseEntity<Resource>> getVariant(@PathVariable String taskId,
+                                                     @RequestParam(required = false) Integer w,
+                                                     @RequestParam(required = false) String format) {
+        return imageVariantService.variant(taskId, w, format)
+                .map(file -> ResponseEntity.ok()
+                        .contentType(MediaType.parseMediaType(ImageVariantService.contentType(file)))
+                        .cacheControl(CacheControl.maxAge(30, TimeUnit.DAYS).cachePublic())
+                        .<Resource>body(new FileSystemResource(file)))
+                .onErrorResume(ResponseStatusException.class, e -> Mono.just(ResponseEntity.status(e.getStatus()).build()))
+                .onErrorReturn(ResponseEntity.status(500).build());
+    }
+
+    /**
+     * 上传的文件先落盘到临时文件，再按内容去重保存到MinIO
+     */
+    @PostMapping("/upload")
+    public Mono<ResponseEntity<String>> uploadImage(@RequestPart("file") FilePart file) {
+        MediaType contentType = file.headers().getContentType();
+        return Mono.fromCallable(() -> Files.createTempFile("upload-", null))
+                .subscribeOn(blockingIoScheduler)
+                .flatMap(temp -> file.transferTo(temp)
+                        .then(Mono.fromCallable(() -> {
+                            String fileName = minioUtil.uploadDeduplicated(new FileSystemResource(temp), Files.size(temp),
+                                    file.filename(), contentType != null ? contentType.toString() : null);
+                            return minioUtil.getFileUrl(fileName);
+                        }).subscribeOn(blockingIoScheduler))
+                        .doFinally(signal -> deleteQuietly(temp)))
+                .map(url -> ResponseEntity.ok(url))
+                .onErrorResume(e -> Mono.just(ResponseEntity.status(500).body("上传失败: " + e.getMessage())));
+    }
+
+    private static String remoteAddress(ServerHttpRequest request) {
+        InetSocketAddress address = request.getRemoteAddress();
+        if (address == null) {
+            return "unknown";
+        }
+        return address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("删除上传临时文件失败: {}, {}", file, e.getMessage());
+        }
+    }
+}
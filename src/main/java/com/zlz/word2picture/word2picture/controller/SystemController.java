@@ -0,0 +1,54 @@
+package com.zlz.word2picture.word2picture.controller;
+
+import com.zlz.word2picture.word2picture.config.HttpClientFactory;
+import com.zlz.word2picture.word2picture.service.NodeTimingProfiler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.netty.resources.ConnectionPoolMetrics;
+
+import java.net.SocketAddress;
+import java.util.*;
+
+@RestController
+@RequestMapping("/api/system")
+public class SystemController {
+    @Autowired
+    private HttpClientFactory httpClientFactory;
+    @Autowired
+    private NodeTimingProfiler nodeTimingProfiler;
+
+    /**
+     * 各下游HTTP连接池的实时状态
+     */
+    @GetMapping("/http-pools")
+    public Map<String, List<Map<String, Object>>> httpPools() {
+        Map<String, List<Map<String, Object>>> result = new TreeMap<>();
+        httpClientFactory.getPoolMetrics().forEach((pool, remotes) -> {
+            List<Map<String, Object>> list = new ArrayList<>();
+            for (Map.Entry<SocketAddress, ConnectionPoolMetrics> entry : remotes.entrySet()) {
+                ConnectionPoolMetrics metrics = entry.getValue();
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("remote", String.valueOf(entry.getKey()));
+                item.put("acquired", metrics.acquiredSize());
+                item.put("allocated", metrics.allocatedSize());
+                item.put("idle", metrics.idleSize());
+                item.put("pendingAcquire", metrics.pendingAcquireSize());
+                item.put("maxAllocated", metrics.maxAllocatedSize());
+                item.put("maxPendingAcquire", metrics.maxPendingAcquireSize());
+                list.add(item);
+            }
+            result.put(pool, list);
+        });
+        return result;
+    }
+
+    /**
+     * 各模板在每个后端上的节点耗时分布(模板 -> 后端 -> 节点)，用于判断文本编码、采样、VAE解码中哪一步占主要时间
+     */
+    @GetMapping("/node-timings")
+    public Map<String, Map<String, Map<String, Object>>> nodeTimings() {
+        return nodeTimingProfiler.breakdown();
+    }
+}
@@ -0,0 +1,18 @@
+package com.zlz.word2picture.word2picture.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 批量生成请求，两种写法二选一：
+ * requests逐个列出任务；或以base为模板，按prompts × seeds展开（为空的一维沿用base中的值）
+ */
+@Data
+public class BatchGenerateRequest {
+    private List<GenerateImageRequest> requests;
+
+    private GenerateImageRequest base;
+    private List<String> prompts;
+    private List<Long> seeds;
+}
@@ -0,0 +1,25 @@
+package com.zlz.word2picture.word2picture.model;
+
+import lombok.Data;
+
+/**
+ * 批量任务的聚合进度：每个子任务的进度变化都附带一次整体进度
+ */
+@Data
+public class BatchProgress {
+    private String batchId;
+    private int total;
+    private int completed;     // 成功的子任务数
+    private int failed;        // 失败的子任务数
+    private Integer progress;  // 整体进度 0-100
+    private TaskProgress item; // 本次变化的子任务进度
+
+    public BatchProgress(String batchId, int total, int completed, int failed, Integer progress, TaskProgress item) {
+        this.batchId = batchId;
+        this.total = total;
+        this.completed = completed;
+        this.failed = failed;
+        this.progress = progress;
+        this.item = item;
+    }
+}
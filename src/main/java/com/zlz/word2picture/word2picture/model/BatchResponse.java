@@ -0,0 +1,22 @@
+package com.zlz.word2picture.word2picture.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class BatchResponse {
+    private String batchId;
+    private String status;
+    private String message;
+    // 按请求顺序排列的子任务
+    private List<TaskResponse> tasks;
+    private Long timestamp;
+
+    public static BatchResponse error(String message) {
+        BatchResponse response = new BatchResponse();
+        response.setStatus("ERROR");
+        response.setMessage(message);
+        return response;
+    }
+}
@@ -0,0 +1,46 @@
+package com.zlz.word2picture.word2picture.model;
+
+/**
+ * ComfyUI websocket推送的事件，只保留本服务用到的字段
+ */
+public sealed interface ComfyUIEvent {
+
+    /**
+     * 所属任务的prompt_id，不属于具体任务的事件(status)为空
+     */
+    String promptId();
+
+    /**
+     * 队列状态
+     */
+    record Status(int queueRemaining) implements ComfyUIEvent {
+        @Override
+        public String promptId() {
+            return null;
+        }
+    }
+
+    record ExecutionStart(String promptId) implements ComfyUIEvent {
+    }
+
+    /**
+     * 当前节点的采样进度
+     */
+    record Progress(String promptId, int value, int max) implements ComfyUIEvent {
+    }
+
+    /**
+     * 开始执行某个节点，node为空表示整个工作流执行完毕
+     */
+    record Executing(String promptId, String node) implements ComfyUIEvent {
+    }
+
+    /**
+     * 节点执行完成，filename等为该节点输出的第一张图片，没有图片输出时为空
+     */
+    record Executed(String promptId, String node, String filename, String subfolder, String type) implements ComfyUIEvent {
+    }
+
+    record ExecutionError(String promptId, String message) implements ComfyUIEvent {
+    }
+}
@@ -9,28 +9,33 @@ public class GenerateImageRequest {
     @NotBlank(message = "提示词不能为空")
     private String prompt;
 
-    private String negativePrompt = "";
+    // 以下参数为空时沿用工作流模板中的取值
+    private String negativePrompt;
 
 //    @Min(value = 1, message = "宽度必须大于0")
-    private Integer width = 512;
+    private Integer width;
 
 //    @Min(value = 1, message = "高度必须大于0")
-    private Integer height = 512;
+    private Integer height;
 
 //    @Min(value = 1, message = "步骤数必须大于0")
-    private Integer steps = 20;
+    private Integer steps;
 
-    private Double cfgScale = 8.0;
+    private Double cfgScale;
 
-    private String samplerName = "euler";
+    private String samplerName;
 
-    private String scheduler = "normal";
+    private String scheduler;
 
-    private Integer seed = -1;
+    // 小于0时随机生成
+    private Long seed = -1L;
 
     @NotBlank(message = "工作流不能为空")
     private String workflowTemplate = "qwen-image-pro.json";
 
     private String imageUrl;
     private String imageName;
+
+    // 任务优先级: interactive(默认) / batch
+    private String priority;
 }
@@ -0,0 +1,25 @@
+package com.zlz.word2picture.word2picture.model;
+
+/**
+ * 任务优先级，排队时高优先级的任务先分配到后端
+ */
+public enum TaskPriority {
+    // 页面上交互式生成
+    INTERACTIVE,
+    // 批量生成
+    BATCH;
+
+    /**
+     * 解析请求中的优先级，未指定或无法识别时按交互式处理
+     */
+    public static TaskPriority of(String value) {
+        if (value != null) {
+            for (TaskPriority priority : values()) {
+                if (priority.name().equalsIgnoreCase(value.trim())) {
+                    return priority;
+                }
+            }
+        }
+        return INTERACTIVE;
+    }
+}
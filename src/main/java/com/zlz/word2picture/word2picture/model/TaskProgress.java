@@ -5,9 +5,11 @@ import lombok.Data;
 @Data
 public class TaskProgress {
     private String taskId;
-    private String status;     // PENDING, RUNNING, SUCCESS, FAILED
+    private String status;     // QUEUED, PENDING, RUNNING, SUCCESS, FAILED
     private Integer progress;  // 0-100
     private String detail;     // 当前节点、提示信息
+    private Integer queuePosition; // 排队中时前面的任务数
+    private Integer etaSeconds; // 预计剩余秒数，按历史节点耗时估算，没有历史数据时为空
 
     // 构造函数
     public TaskProgress(String taskId, String status, Integer progress, String detail) {
@@ -0,0 +1,54 @@
+package com.zlz.word2picture.word2picture.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * 任务登记表中保存的任务状态
+ * 不可变，每次状态变化替换为新实例；状态和消息多为常量字符串，clientId为后端共享websocket的ID，
+ * 每个任务实际独占的只有taskId和输出地址。对外返回时转换为TaskResponse
+ *
+ * @param trackedEpoch 订阅websocket事件时的跟踪轮次，与当前轮次相同时内存状态即为最新状态，未跟踪为-1
+ */
+public record TaskRecord(String taskId, String clientId, String status, String message,
+                         String imageUrl, String backend, long timestamp, int trackedEpoch) {
+
+    public static TaskRecord of(TaskResponse task) {
+        return new TaskRecord(task.getTaskId(), task.getClientId(), task.getStatus(), task.getMessage(),
+                task.getImageUrl(), task.getBackend(),
+                task.getTimestamp() != null ? task.getTimestamp() : System.currentTimeMillis(), -1);
+    }
+
+    public TaskRecord withStatus(String status, String message) {
+        return new TaskRecord(taskId, clientId, status, message, imageUrl, backend, timestamp, trackedEpoch);
+    }
+
+    public TaskRecord withImageUrl(String imageUrl) {
+        return new TaskRecord(taskId, clientId, status, message, imageUrl, backend, timestamp, trackedEpoch);
+    }
+
+    public TaskRecord submitted(String backend, String clientId) {
+        return new TaskRecord(taskId, clientId, "SUBMITTED", "图像生成任务已提交", imageUrl, backend, timestamp, trackedEpoch);
+    }
+
+    public TaskRecord tracked(int epoch) {
+        return epoch == trackedEpoch ? this
+                : new TaskRecord(taskId, clientId, status, message, imageUrl, backend, timestamp, epoch);
+    }
+
+    @JsonIgnore
+    public boolean isTerminal() {
+        return "COMPLETED".equals(status) || "ERROR".equals(status);
+    }
+
+    public TaskResponse toResponse() {
+        TaskResponse response = new TaskResponse();
+        response.setTaskId(taskId);
+        response.setClientId(clientId);
+        response.setStatus(status);
+        response.setMessage(message);
+        response.setImageUrl(imageUrl);
+        response.setTimestamp(timestamp);
+        response.setBackend(backend);
+        return response;
+    }
+}
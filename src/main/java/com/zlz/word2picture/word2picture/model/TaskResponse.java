@@ -10,4 +10,13 @@ public class TaskResponse {
     private String message;
     private String imageUrl;
     private Long timestamp;
+    // 执行该任务的ComfyUI后端，状态/结果/进度查询都固定到该后端
+    private String backend;
+
+    public static TaskResponse error(String message) {
+        TaskResponse response = new TaskResponse();
+        response.setStatus("ERROR");
+        response.setMessage(message);
+        return response;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,25 @@
+package com.zlz.word2picture.word2picture.model;
+
+import lombok.Data;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 工作流参数绑定清单，对应resources/workflows目录下与模板同名的*.binding.json文件
+ * bindings的key为GenerateImageRequest的字段名，value为要写入的节点输入；未声明的字段按class_type自动推导
+ */
+@Data
+public class WorkflowManifest {
+    // 提示词前缀，例如3D模板的"3D画面；"
+    private String promptPrefix;
+
+    private Map<String, List<Target>> bindings = new HashMap<>();
+
+    @Data
+    public static class Target {
+        private String node;
+        private String input;
+    }
+}
@@ -0,0 +1,197 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.zlz.word2picture.word2picture.model.*;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * 批量生成：一次请求展开为多个子任务整体入队，进度合并为一个SSE流
+ */
+@Slf4j
+@Service
+public class BatchService {
+
+    private static final int MAX_BATCH_SIZE = 100;
+
+    @Autowired
+    private GenerationScheduler generationScheduler;
+    @Autowired
+    private TaskStateStore taskStateStore;
+    @Autowired
+    private TaskProgressService taskProgressService;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // batchId -> 子任务ID，一段时间无人查询后过期
+    private final Cache<String, List<String>> batches = Caffeine.newBuilder()
+            .expireAfterAccess(Duration.ofHours(1))
+            .maximumSize(10_000)
+            .build();
+
+    public Mono<BatchResponse> submit(BatchGenerateRequest batch, String clientKey) {
+        return Mono.fromCallable(() -> expand(batch))
+                .flatMap(requests -> generationScheduler.submitAll(requests, clientKey))
+                .map(tasks -> {
+                    String batchId = UUID.randomUUID().toString();
+                    batches.put(batchId, tasks.stream().map(TaskResponse::getTaskId).collect(Collectors.toList()));
+                    log.info("批量任务已入队: {}, 子任务数: {}", batchId, tasks.size());
+                    return response(batchId, tasks);
+                });
+    }
+
+    /**
+     * 查询批量任务及各子任务的当前状态，批次不存在时为空
+     */
+    public Mono<BatchResponse> get(String batchId) {
+        List<String> taskIds = batches.getIfPresent(batchId);
+        if (taskIds == null) {
+            return Mono.empty();
+        }
+        return Flux.fromIterable(taskIds)
+                .concatMap(taskStateStore::lookup)
+                .collectList()
+                .map(tasks -> response(batchId, tasks));
+    }
+
+    /**
+     * 批量任务的聚合进度流，所有子任务结束后完成
+     */
+    public Flux<BatchProgress> progress(String batchId) {
+        List<String> taskIds = batches.getIfPresent(batchId);
+        if (taskIds == null) {
+            return Flux.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "批量任务不存在"));
+        }
+        // 批内相同的请求合并为同一个任务
+        List<String> distinct = taskIds.stream().distinct().collect(Collectors.toList());
+        return Flux.defer(() -> {
+            // 每个订阅各自维护子任务的最新进度
+            Map<String, TaskProgress> latest = new HashMap<>();
+            return Flux.fromIterable(distinct)
+                    .flatMap(taskId -> taskProgressService.progress(taskId).onBackpressureLatest(), distinct.size(), 1)
+                    .map(update -> summarize(batchId, distinct.size(), latest, update));
+        });
+    }
+
+    public SseEmitter register(String batchId) {
+        checkExists(batchId);
+        Sinks.Empty<Void> done = Sinks.empty();
+        Flux<SseEmitter.SseEventBuilder> events = progress(batchId)
+                .doFinally(signal -> done.tryEmitEmpty())
+                .map(update -> SseEmitter.event().name("progress").data(update));
+        return taskProgressService.stream(batchId, events, done.asMono());
+    }
+
+    /**
+     * 响应式模式下的聚合进度流
+     */
+    public Flux<ServerSentEvent<BatchProgress>> listen(String batchId) {
+        checkExists(batchId);
+        return Flux.defer(() -> {
+            Sinks.Empty<Void> done = Sinks.empty();
+            return taskProgressService.events(progress(batchId).doFinally(signal -> done.tryEmitEmpty()), done.asMono());
+        });
+    }
+
+    private void checkExists(String batchId) {
+        if (batches.getIfPresent(batchId) == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "批量任务不存在");
+        }
+    }
+
+    private List<GenerateImageRequest> expand(BatchGenerateRequest batch) {
+        List<GenerateImageRequest> requests = new ArrayList<>();
+        if (batch.getRequests() != null && !batch.getRequests().isEmpty()) {
+            requests.addAll(batch.getRequests());
+        } else if (batch.getBase() != null) {
+            List<String> prompts = isEmpty(batch.getPrompts())
+                    ? Collections.singletonList(batch.getBase().getPrompt()) : batch.getPrompts();
+            List<Long> seeds = isEmpty(batch.getSeeds())
+                    ? Collections.singletonList(batch.getBase().getSeed()) : batch.getSeeds();
+            for (String prompt : prompts) {
+                for (Long seed : seeds) {
+                    GenerateImageRequest request = objectMapper.convertValue(batch.getBase(), GenerateImageRequest.class);
+                    request.setPrompt(prompt);
+                    request.setSeed(seed);
+                    requests.add(request);
+                }
+            }
+        }
+        if (requests.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "批量任务不能为空");
+        }
+        if (requests.size() > MAX_BATCH_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "单批任务数不能超过" + MAX_BATCH_SIZE);
+        }
+        for (GenerateImageRequest request : requests) {
+            if (StringUtils.isBlank(request.getPrompt())) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "提示词不能为空");
+            }
+            // 批量任务默认按批量优先级排队，不挤占交互式请求
+            if (request.getPriority() == null) {
+                request.setPriority(TaskPriority.BATCH.name());
+            }
+        }
+        return requests;
+    }
+
+    private static BatchProgress summarize(String batchId, int total, Map<String, TaskProgress> latest, TaskProgress update) {
+        TaskProgress previous = latest.get(update.getTaskId());
+        if (update.getProgress() == null && previous != null) {
+            // 执行节点等消息不带百分比，沿用上一次的进度
+            update = new TaskProgress(update.getTaskId(), update.getStatus(), previous.getProgress(), update.getDetail());
+        }
+        latest.put(update.getTaskId(), update);
+
+        int completed = 0;
+        int failed = 0;
+        int sum = 0;
+        for (TaskProgress item : latest.values()) {
+            if ("SUCCESS".equals(item.getStatus())) {
+                completed++;
+                sum += 100;
+            } else if ("FAILED".equals(item.getStatus())) {
+                failed++;
+                sum += 100;
+            } else if (item.getProgress() != null) {
+                sum += item.getProgress();
+            }
+        }
+        return new BatchProgress(batchId, total, completed, failed, sum / total, update);
+    }
+
+    private static BatchResponse response(String batchId, List<TaskResponse> tasks) {
+        BatchResponse response = new BatchResponse();
+        response.setBatchId(batchId);
+        response.setTasks(tasks);
+        response.setTimestamp(System.currentTimeMillis());
+        long finished = tasks.stream().filter(TaskStateStore::isTerminal).count();
+        if (finished == tasks.size()) {
+            response.setStatus("COMPLETED");
+            response.setMessage("批量任务已全部结束");
+        } else {
+            response.setStatus("PROCESSING");
+            response.setMessage(String.format("批量任务进行中: %d/%d", finished, tasks.size()));
+        }
+        return response;
+    }
+
+    private static boolean isEmpty(List<?> list) {
+        return list == null || list.isEmpty();
+    }
+}
@@ -0,0 +1,91 @@
+package com.zlz.word2picture.word2picture.service;
+
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个ComfyUI后端：HTTP客户端、共享websocket以及实时队列深度和健康状态
+ */
+public class ComfyUIBackend {
+
+    private final String name;
+    private final String baseUrl;
+    private final WebClient webClient;
+    private final ComfyUIEventChannel eventChannel;
+
+    // ComfyUI报告的排队+执行中的任务数，提交后先本地累加，下次status/queue时校正
+    private final AtomicInteger queueRemaining = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile boolean healthy = true;
+    // 至少有一次健康检查成功，启动后的第一次检查完成前healthy只是初始值
+    private volatile boolean reachable;
+
+    public ComfyUIBackend(String name, String baseUrl, WebClient webClient, ComfyUIEventChannel eventChannel) {
+        this.name = name;
+        this.baseUrl = baseUrl;
+        this.webClient = webClient;
+        this.eventChannel = eventChannel;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    public WebClient getWebClient() {
+        return webClient;
+    }
+
+    public ComfyUIEventChannel getEventChannel() {
+        return eventChannel;
+    }
+
+    public int getQueueRemaining() {
+        return queueRemaining.get();
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public boolean isReachable() {
+        return reachable;
+    }
+
+    void updateQueueRemaining(int remaining) {
+        queueRemaining.set(remaining);
+    }
+
+    /**
+     * 分配任务后预估队列深度+1，避免两次status之间的请求都路由到同一后端
+     */
+    void reserve() {
+        queueRemaining.incrementAndGet();
+    }
+
+    /**
+     * @return 该后端是否由摘除状态恢复
+     */
+    boolean onCheckSuccess() {
+        consecutiveFailures.set(0);
+        boolean recovered = !healthy;
+        healthy = true;
+        reachable = true;
+        return recovered;
+    }
+
+    /**
+     * @return 该后端是否因本次失败被摘除
+     */
+    boolean onCheckFailure(int failureThreshold) {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && healthy) {
+            healthy = false;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,172 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zlz.word2picture.word2picture.config.ComfyUIProperties;
+import com.zlz.word2picture.word2picture.config.HttpClientFactory;
+import com.zlz.word2picture.word2picture.model.ComfyUIEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * ComfyUI后端池
+ * 按实时队列深度(websocket的status消息和/queue健康检查)选择最空闲的健康后端，
+ * 连续健康检查失败的后端被摘除，恢复后重新加入
+ */
+@Slf4j
+@Service
+public class ComfyUIBackendPool {
+
+    @Autowired
+    private ComfyUIProperties properties;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private ComfyUIEventDecoder comfyUIEventDecoder;
+    @Autowired
+    private HttpClientFactory httpClientFactory;
+    @Value("${comfyui.api.base-url}")
+    private String defaultBaseUrl;
+    @Value("${comfyui.api.ws-url}")
+    private String defaultWsUrl;
+
+    private final Map<String, ComfyUIBackend> backends = new LinkedHashMap<>();
+    private final List<Consumer<ComfyUIBackend>> recoveryListeners = new CopyOnWriteArrayList<>();
+    private Disposable healthCheck;
+
+    @PostConstruct
+    public void init() {
+        List<ComfyUIProperties.Backend> configured = properties.getBackends();
+        if (configured.isEmpty()) {
+            ComfyUIProperties.Backend single = new ComfyUIProperties.Backend();
+            single.setName("default");
+            single.setBaseUrl(defaultBaseUrl);
+            single.setWsUrl(defaultWsUrl);
+            configured = Collections.singletonList(single);
+        }
+        for (ComfyUIProperties.Backend config : configured) {
+            String name = StringUtils.isBlank(config.getName()) ? config.getBaseUrl() : config.getName();
+            ComfyUIEventChannel channel = new ComfyUIEventChannel(config.getWsUrl(), comfyUIEventDecoder);
+            ComfyUIBackend backend = new ComfyUIBackend(name, config.getBaseUrl(),
+                    httpClientFactory.create("comfyui-" + name, config.getBaseUrl()), channel);
+            channel.addBroadcastListener(event -> onBroadcast(backend, event));
+            backends.put(name, backend);
+        }
+        log.info("ComfyUI后端: {}", backends.keySet());
+
+        ComfyUIProperties.HealthCheck check = properties.getHealthCheck();
+        healthCheck = Flux.interval(Duration.ZERO, Duration.ofMillis(check.getInterval()))
+                .onBackpressureDrop()
+                .concatMap(tick -> Flux.fromIterable(backends.values()).flatMap(this::check).then())
+                .subscribe();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (healthCheck != null) {
+            healthCheck.dispose();
+        }
+    }
+
+    /**
+     * 选择队列最短的健康后端
+     */
+    public ComfyUIBackend select() {
+        ComfyUIBackend selected = select(backend -> true);
+        if (selected == null) {
+            throw new RuntimeException("没有可用的ComfyUI后端");
+        }
+        return selected;
+    }
+
+    /**
+     * 在满足条件的健康后端中选择队列最短的，没有时返回null
+     */
+    public synchronized ComfyUIBackend select(Predicate<ComfyUIBackend> eligible) {
+        ComfyUIBackend selected = null;
+        for (ComfyUIBackend backend : backends.values()) {
+            if (backend.isHealthy() && eligible.test(backend)
+                    && (selected == null || backend.getQueueRemaining() < selected.getQueueRemaining())) {
+                selected = backend;
+            }
+        }
+        if (selected != null) {
+            selected.reserve();
+        }
+        return selected;
+    }
+
+    public boolean hasHealthyBackend() {
+        return backends.values().stream().anyMatch(ComfyUIBackend::isHealthy);
+    }
+
+    /**
+     * 后端由摘除状态恢复时回调
+     */
+    public void addRecoveryListener(Consumer<ComfyUIBackend> listener) {
+        recoveryListeners.add(listener);
+    }
+
+    /**
+     * 按名称获取后端，用于任务固定到提交时的后端
+     */
+    public ComfyUIBackend get(String name) {
+        return name == null ? null : backends.get(name);
+    }
+
+    public Collection<ComfyUIBackend> getBackends() {
+        return Collections.unmodifiableCollection(backends.values());
+    }
+
+    private void onBroadcast(ComfyUIBackend backend, ComfyUIEvent event) {
+        if (event instanceof ComfyUIEvent.Status status) {
+            backend.updateQueueRemaining(status.queueRemaining());
+        }
+    }
+
+    private Mono<Void> check(ComfyUIBackend backend) {
+        ComfyUIProperties.HealthCheck check = properties.getHealthCheck();
+        return backend.getWebClient().get()
+                .uri("/queue")
+                // 健康检查不重试，如实累计失败次数
+                .attribute(HttpClientFactory.NO_RETRY, true)
+                .retrieve()
+                .bodyToMono(String.class)
+                .timeout(Duration.ofMillis(check.getTimeout()))
+                .doOnNext(response -> {
+                    try {
+                        JsonNode queue = objectMapper.readTree(response);
+                        backend.updateQueueRemaining(queue.path("queue_running").size() + queue.path("queue_pending").size());
+                    } catch (Exception e) {
+                        throw new IllegalStateException("解析/queue响应失败: " + e.getMessage(), e);
+                    }
+                    if (backend.onCheckSuccess()) {
+                        log.info("ComfyUI后端已恢复: {}", backend.getName());
+                        recoveryListeners.forEach(listener -> listener.accept(backend));
+                    }
+                })
+                .then()
+                .onErrorResume(e -> {
+                    if (backend.onCheckFailure(check.getFailureThreshold())) {
+                        log.error("ComfyUI后端健康检查连续失败，已摘除: {}, {}", backend.getName(), e.getMessage());
+                    } else {
+                        log.warn("ComfyUI后端健康检查失败: {}, {}", backend.getName(), e.getMessage());
+                    }
+                    return Mono.empty();
+                });
+    }
+}
@@ -0,0 +1,225 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.zlz.word2picture.word2picture.model.ComfyUIEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.client.ReactorNettyWebSocketClient;
+import org.springframework.web.reactive.socket.client.WebSocketClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.retry.Retry;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 与一个ComfyUI后端之间唯一的websocket连接
+ * 所有任务使用同一个client_id提交，ComfyUI的执行事件都会推送到这条连接上，再按prompt_id分发给订阅的任务；
+ * 第一个任务订阅时建立连接，断开后自动重连，最后一个订阅取消时关闭连接；
+ * ComfyUI只向已连接的client_id推送事件，提交前需等待whenOpen，否则很快执行完(例如全部命中缓存)的任务会丢失全部事件
+ */
+@Slf4j
+public class ComfyUIEventChannel {
+
+    private static final Duration RECONNECT_DELAY = Duration.ofSeconds(3);
+
+    private final String wsUrl;
+    private final ComfyUIEventDecoder decoder;
+    private final String clientId = UUID.randomUUID().toString();
+    private final WebSocketClient webSocketClient = new ReactorNettyWebSocketClient();
+
+    // prompt_id -> 订阅该任务事件的处理器
+    private final Map<String, List<Consumer<ComfyUIEvent>>> subscribers = new ConcurrentHashMap<>();
+    // 不带prompt_id的事件(status等)的处理器
+    private final List<Consumer<ComfyUIEvent>> broadcastListeners = new CopyOnWriteArrayList<>();
+    // 断线重连成功后的回调
+    private final List<Runnable> reconnectListeners = new CopyOnWriteArrayList<>();
+    // 连接意外断开(例如ComfyUI重启)后重连成功的回调
+    private final List<Runnable> connectionLostListeners = new CopyOnWriteArrayList<>();
+    // 每次会话建立后的回调，包括首次连接
+    private final List<Runnable> openListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean everConnected;
+
+    // 当前会话建立后完成，会话断开后换成新的；openSession为建立该会话的WebSocketSession
+    private Sinks.Empty<Void> open = Sinks.empty();
+    private Object openSession;
+
+    private int refCount;
+    private Disposable connection;
+
+    public ComfyUIEventChannel(String wsUrl, ComfyUIEventDecoder decoder) {
+        this.wsUrl = wsUrl;
+        this.decoder = decoder;
+    }
+
+    /**
+     * 提交任务时使用的client_id
+     */
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * 订阅某个任务的事件，返回值用于取消订阅
+     */
+    public Disposable subscribe(String promptId, Consumer<ComfyUIEvent> handler) {
+        subscribers.computeIfAbsent(promptId, id -> new CopyOnWriteArrayList<>()).add(handler);
+        retain();
+        return new Disposable() {
+            private volatile boolean disposed;
+
+            @Override
+            public void dispose() {
+                if (disposed) {
+                    return;
+                }
+                disposed = true;
+                subscribers.computeIfPresent(promptId, (id, handlers) -> {
+                    handlers.remove(handler);
+                    return handlers.isEmpty() ? null : handlers;
+                });
+                release();
+            }
+
+            @Override
+            public boolean isDisposed() {
+                return disposed;
+            }
+        };
+    }
+
+    /**
+     * 监听不属于具体任务的事件，例如队列状态status，不影响连接的引用计数
+     */
+    public void addBroadcastListener(Consumer<ComfyUIEvent> listener) {
+        broadcastListeners.add(listener);
+    }
+
+    /**
+     * 断线重连成功后回调，首次建立连接时不回调
+     */
+    public void addReconnectListener(Runnable listener) {
+        reconnectListeners.add(listener);
+    }
+
+    /**
+     * 连接意外断开后重连成功时回调；无订阅关闭后重新建立连接时不回调
+     */
+    public void addConnectionLostListener(Runnable listener) {
+        connectionLostListeners.add(listener);
+    }
+
+    /**
+     * 每次会话建立后回调(包括首次连接)，用于以/history补齐会话建立前错过的事件
+     */
+    public void addOpenListener(Runnable listener) {
+        openListeners.add(listener);
+    }
+
+    /**
+     * 会话已建立时立即完成，否则等待连接建立；超时后同样完成，错过的事件由会话建立后的/history查询补齐
+     */
+    public Mono<Void> whenOpen(Duration timeout) {
+        return Mono.defer(() -> currentOpen().asMono())
+                .timeout(timeout, Mono.fromRunnable(() ->
+                        log.warn("等待ComfyUI websocket连接超时({}ms)，继续提交: {}", timeout.toMillis(), wsUrl)));
+    }
+
+    public boolean isConnected() {
+        synchronized (this) {
+            return connection != null && !connection.isDisposed();
+        }
+    }
+
+    public int getSubscribedTaskCount() {
+        return subscribers.size();
+    }
+
+    private synchronized void retain() {
+        if (refCount++ == 0) {
+            connect();
+        }
+    }
+
+    private synchronized void release() {
+        if (refCount > 0 && --refCount == 0 && connection != null) {
+            log.info("ComfyUI websocket无订阅，关闭连接: {}", wsUrl);
+            connection.dispose();
+            connection = null;
+        }
+    }
+
+    private void connect() {
+        URI uri = URI.create(String.format("%s?clientId=%s", wsUrl, clientId));
+        log.info("建立ComfyUI websocket连接: {}", uri);
+        // 同一次connect内第二次及以后建立的会话是断线重连
+        AtomicBoolean opened = new AtomicBoolean();
+        connection = Mono.defer(() -> webSocketClient.execute(uri, session -> {
+                    onSessionOpened(session, opened.getAndSet(true));
+                    // 二进制帧是采样预览图，不处理；文本帧在接收线程上直接解码，payload随后由框架释放
+                    return session.receive()
+                            .filter(message -> message.getType() == WebSocketMessage.Type.TEXT)
+                            .doOnNext(message -> dispatch(decoder.decode(message.getPayload())))
+                            .doFinally(signal -> onSessionClosed(session))
+                            .then();
+                }))
+                .doOnError(e -> log.error("ComfyUI websocket连接异常: {}, {}", wsUrl, e.getMessage()))
+                // 服务端正常关闭时同样重连
+                .then(Mono.<Void>error(new IllegalStateException("websocket连接已关闭")))
+                .retryWhen(Retry.fixedDelay(Long.MAX_VALUE, RECONNECT_DELAY)
+                        .doBeforeRetry(signal -> log.warn("重连ComfyUI websocket: {}, 第{}次",
+                                wsUrl, signal.totalRetries() + 1)))
+                .subscribe();
+    }
+
+    private synchronized Sinks.Empty<Void> currentOpen() {
+        return open;
+    }
+
+    private void onSessionOpened(Object session, boolean afterConnectionLost) {
+        synchronized (this) {
+            // 旧会话的关闭回调可能晚于新会话建立，按会话区分
+            openSession = session;
+            open.tryEmitEmpty();
+        }
+        openListeners.forEach(Runnable::run);
+        if (!everConnected) {
+            everConnected = true;
+            return;
+        }
+        log.info("ComfyUI websocket已重连: {}", wsUrl);
+        reconnectListeners.forEach(Runnable::run);
+        if (afterConnectionLost) {
+            connectionLostListeners.forEach(Runnable::run);
+        }
+    }
+
+    private synchronized void onSessionClosed(Object session) {
+        if (openSession == session) {
+            openSession = null;
+            open = Sinks.empty();
+        }
+    }
+
+    private void dispatch(ComfyUIEvent event) {
+        if (event == null) {
+            return;
+        }
+        if (event.promptId() == null) {
+            broadcastListeners.forEach(listener -> listener.accept(event));
+            return;
+        }
+        List<Consumer<ComfyUIEvent>> handlers = subscribers.get(event.promptId());
+        if (handlers != null) {
+            handlers.forEach(handler -> handler.accept(event));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.zlz.word2picture.word2picture.model.ComfyUIEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * ComfyUI websocket消息解码
+ * 直接在帧的DataBuffer上流式读取，只取type、prompt_id、value/max、node、第一张输出图片、错误信息和队列长度，
+ * 其余字段(例如executed中的完整输出、execution_cached的节点列表)跳过，不构建JsonNode树也不复制成字符串
+ */
+@Slf4j
+@Component
+public class ComfyUIEventDecoder {
+
+    // JsonFactory线程安全，所有连接共享
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * 解码一帧文本消息，不关心的事件类型和格式错误的消息返回null；不改变payload的引用计数
+     */
+    public ComfyUIEvent decode(DataBuffer payload) {
+        try (InputStream in = payload.asInputStream()) {
+            return decode(in);
+        } catch (Exception e) {
+            log.warn("解析ComfyUI消息失败: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    ComfyUIEvent decode(InputStream in) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            String type = null;
+            Fields data = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("type".equals(name)) {
+                    type = parser.getValueAsString();
+                } else if ("data".equals(name) && value == JsonToken.START_OBJECT) {
+                    data = readData(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return type == null || data == null ? null : toEvent(type, data);
+        }
+    }
+
+    private static ComfyUIEvent toEvent(String type, Fields data) {
+        switch (type) {
+            case "status":
+                return data.queueRemaining < 0 ? null : new ComfyUIEvent.Status(data.queueRemaining);
+            case "execution_start":
+                return new ComfyUIEvent.ExecutionStart(data.promptId);
+            case "progress":
+                return new ComfyUIEvent.Progress(data.promptId, data.value, data.max);
+            case "executing":
+                return new ComfyUIEvent.Executing(data.promptId, data.node);
+            case "executed":
+                return new ComfyUIEvent.Executed(data.promptId, data.node, data.filename, data.subfolder, data.imageType);
+            case "execution_error":
+                return new ComfyUIEvent.ExecutionError(data.promptId,
+                        data.exceptionMessage != null ? data.exceptionMessage : "执行失败");
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 读取data对象，结束时parser停在data的END_OBJECT
+     */
+    private static Fields readData(JsonParser parser) throws IOException {
+        Fields fields = new Fields();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (name) {
+                case "prompt_id":
+                    fields.promptId = parser.getValueAsString();
+                    break;
+                case "node":
+                    // executing的node为null表示执行完毕
+                    fields.node = parser.getValueAsString();
+                    break;
+                case "value":
+                    fields.value = parser.getValueAsInt();
+                    break;
+                case "max":
+                    fields.max = parser.getValueAsInt();
+                    break;
+                case "exception_message":
+                    fields.exceptionMessage = parser.getValueAsString();
+                    break;
+                case "output":
+                    if (value == JsonToken.START_OBJECT) {
+                        readOutput(parser, fields);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                case "status":
+                    if (value == JsonToken.START_OBJECT) {
+                        readStatus(parser, fields);
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * executed的output：{"images": [{"filename", "subfolder", "type"}, ...], ...}，只取第一张图片
+     */
+    private static void readOutput(JsonParser parser, Fields fields) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (!"images".equals(name) || value != JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                continue;
+            }
+            JsonToken item;
+            while ((item = parser.nextToken()) != JsonToken.END_ARRAY) {
+                if (item == JsonToken.START_OBJECT && fields.filename == null) {
+                    readImage(parser, fields);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static void readImage(JsonParser parser, Fields fields) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            switch (name) {
+                case "filename":
+                    fields.filename = parser.getValueAsString();
+                    break;
+                case "subfolder":
+                    fields.subfolder = parser.getValueAsString();
+                    break;
+                case "type":
+                    fields.imageType = parser.getValueAsString();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * status的data.status：{"exec_info": {"queue_remaining": n}}
+     */
+    private static void readStatus(JsonParser parser, Fields fields) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (!"exec_info".equals(name) || value != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken remaining = parser.nextToken();
+                if ("queue_remaining".equals(field) && remaining == JsonToken.VALUE_NUMBER_INT) {
+                    fields.queueRemaining = parser.getIntValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private static final class Fields {
+        private String promptId;
+        private String node;
+        private int value;
+        private int max;
+        private String exceptionMessage;
+        private String filename;
+        private String subfolder;
+        private String imageType;
+        private int queueRemaining = -1;
+    }
+}
@@ -1,6 +1,5 @@
 package com.zlz.word2picture.word2picture.service;
 
-import com.alibaba.fastjson.JSONObject;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -8,110 +7,125 @@ import com.zlz.word2picture.word2picture.model.GenerateImageRequest;
 import com.zlz.word2picture.word2picture.model.TaskResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.BodyInserters;
-import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 @Service
 public class ComfyUIService {
 
+    // 提交前等待后端websocket会话建立的最长时间
+    private static final Duration WS_OPEN_TIMEOUT = Duration.ofSeconds(10);
+
     @Autowired
-    private WebClient comfyUIWebClient;
+    private ComfyUIBackendPool comfyUIBackendPool;
 
     @Autowired
     private ObjectMapper objectMapper;
-    @Value("${comfyui.api.base-url}")
-    private String baseUrl;
-
-    // 用于存储任务状态
-    private final Map<String, TaskResponse> taskStatus = new ConcurrentHashMap<>();
-
-    public static File downloadImageAsFile(String imageUrl) throws Exception{
-        URL url = new URL(imageUrl);
-        try(InputStream in = url.openStream()){
-            File tempFile = File.createTempFile("image-", ".png");
-            tempFile.deleteOnExit();
+    @Autowired
+    private WorkflowTemplateRegistry workflowTemplateRegistry;
+    @Autowired
+    private ImageIngestService imageIngestService;
+    @Autowired
+    private TaskStateStore taskStateStore;
+    @Autowired
+    private TaskProgressService taskProgressService;
+    @Autowired
+    private ResultStorageService resultStorageService;
+    @Autowired
+    private GenerationMetrics generationMetrics;
 
-            String fileSuffix = imageUrl.contains(".")?
-                    imageUrl.split("\\.")[imageUrl.split("\\.").length-1]
-                    : "png";
-            //将远程图片写入临时文件
-            BufferedImage originalImage = ImageIO.read(in);
-            if(originalImage == null){
-                throw new IOException("无法读取远程图像，文件可能非有效图像格式");
-            }
-            String formatName = "png";
-            for(String type : ImageIO.getReaderFormatNames()){
-                if(type.equalsIgnoreCase(fileSuffix)){
-                    formatName = type;break;
-                }
+    /**
+     * 在调度器分配的后端上提交任务，任务ID在排队时已生成并作为prompt_id提交；
+     * 提交失败时任务标记为失败并推送FAILED进度
+     */
+    public Mono<TaskResponse> submit(TaskResponse task, ComfyUIBackend backend, GenerateImageRequest request) {
+        return Mono.defer(() -> {
+                    // 从模板注册表获取预编译的工作流模板
+                    CompiledWorkflow template = workflowTemplateRegistry.get(request.getWorkflowTemplate());
+                    if (request.getImageUrl() == null) {
+                        return submitPrompt(backend, template, task, request);
+                    }
+                    // 图生图：先将源图片导入ComfyUI，再提交工作流
+                    return ingestAndSubmit(backend, template, task, request)
+                            .onErrorResume(ImageIngestService::isMissingImage, e -> {
+                                // 缓存的图片已不在ComfyUI上，移除缓存后重新导入一次
+                                imageIngestService.invalidate(backend, request.getImageName());
+                                return ingestAndSubmit(backend, template, task, request);
+                            });
+                })
+                .doOnError(e -> {
+                    log.error("生成图像请求失败, taskId: {}", task.getTaskId(), e);
+                    taskProgressService.untrack(task.getTaskId());
+                    taskStateStore.onFailed(task.getTaskId(), "图像生成失败: " + e.getMessage());
+                    taskProgressService.broadcastProgress(task.getTaskId(), "FAILED", null, "提交失败: " + e.getMessage());
+                });
+    }
 
-            }
-            ImageIO.write(originalImage, formatName, tempFile);
-            return tempFile;
-        }
+    private Mono<TaskResponse> ingestAndSubmit(ComfyUIBackend backend, CompiledWorkflow template,
+                                               TaskResponse task, GenerateImageRequest request) {
+        return imageIngestService.ingest(backend, request.getImageUrl())
+                .flatMap(imageName -> {
+                    request.setImageName(imageName);
+                    return submitPrompt(backend, template, task, request);
+                });
     }
-    public Mono<TaskResponse> generateImage(GenerateImageRequest request) {
+
+    private Mono<TaskResponse> submitPrompt(ComfyUIBackend backend, CompiledWorkflow template,
+                                            TaskResponse taskResponse, GenerateImageRequest request) {
         try {
-            // 从resources目录加载工作流模板
-            Map<String, Object> workflow = loadWorkflowFromResource(request.getWorkflowTemplate());
-            if(request.getImageUrl() != null){
-                File file = downloadImageAsFile(request.getImageUrl());
-                String imageName = uploadImage(file);
-                request.setImageName(imageName);
-            }
             // 动态替换工作流中的参数
-            updateWorkflowParameters(workflow, request);
+            long patchStart = System.nanoTime();
+            Map<String, Object> workflow = template.instantiate(request);
+            generationMetrics.record("word2picture.template.patch", System.nanoTime() - patchStart,
+                    "template", template.getName());
 
 
+            // 所有任务使用后端共享websocket的client_id提交，提交前即可订阅事件
+            String clientId = backend.getEventChannel().getClientId();
+            taskResponse.setClientId(clientId);
+            taskResponse.setStatus("SUBMITTED");
+            taskResponse.setMessage("图像生成任务已提交");
+            taskResponse.setBackend(backend.getName());
+            taskStateStore.onSubmitted(taskResponse.getTaskId(), backend.getName(), clientId);
+
             // 构建请求体
             Map<String, Object> requestBody = new HashMap<>();
             requestBody.put("prompt", workflow);
-            String clientId = UUID.randomUUID().toString();
             requestBody.put("client_id", clientId);
-
-            log.info("发送请求到ComfyUI，工作流: {}", workflow);
-            return comfyUIWebClient.post()
-                    .uri("/prompt")
-                    .contentType(MediaType.APPLICATION_JSON)
-                    .body(BodyInserters.fromValue(requestBody))
-                    .retrieve()
-                    .bodyToMono(String.class)
+            requestBody.put("prompt_id", taskResponse.getTaskId());
+
+            taskProgressService.track(taskResponse.getTaskId(), backend);
+
+            log.info("发送请求到ComfyUI[{}]，工作流: {}", backend.getName(), workflow);
+            // track已建立连接，会话建立后再提交
+            return backend.getEventChannel().whenOpen(WS_OPEN_TIMEOUT).then(generationMetrics.time(backend.getWebClient().post()
+                            .uri("/prompt")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .body(BodyInserters.fromValue(requestBody))
+                            .retrieve()
+                            .bodyToMono(String.class),
+                            "word2picture.comfyui.submit", "backend", backend.getName()))
                     .map(response -> {
                         try {
                             Map<String, Object> responseMap = objectMapper.readValue(response, new TypeReference<Map<String, Object>>() {});
-                            String taskId = (String) responseMap.get("prompt_id");
-
-                            TaskResponse taskResponse = new TaskResponse();
-                            taskResponse.setTaskId(taskId);
-                            taskResponse.setClientId(clientId);
-                            taskResponse.setStatus("SUBMITTED");
-                            taskResponse.setMessage("图像生成任务已提交");
-                            taskResponse.setTimestamp(System.currentTimeMillis());
-
-                            // 存储任务状态
-                            taskStatus.put(taskId, taskResponse);
+                            String promptId = (String) responseMap.get("prompt_id");
+                            if (promptId != null && !promptId.equals(taskResponse.getTaskId())) {
+                                // 不支持指定prompt_id的旧版ComfyUI，任务ID不变，改按其生成的ID订阅事件
+                                taskProgressService.untrack(taskResponse.getTaskId());
+                                taskProgressService.track(taskResponse.getTaskId(), promptId, backend);
+                            }
 
-                            log.info("任务提交成功，任务ID: {}", taskId);
+                            log.info("任务提交成功，任务ID: {}", taskResponse.getTaskId());
                             return taskResponse;
                         } catch (Exception e) {
                             log.error("解析ComfyUI响应失败", e);
@@ -120,7 +134,7 @@ public class ComfyUIService {
                     })
                     .onErrorMap(e -> {
                         log.error("调用ComfyUI API失败", e);
-                        throw new RuntimeException("调用ComfyUI失败: " + e.getMessage());
+                        throw new RuntimeException("调用ComfyUI失败: " + e.getMessage(), e);
                     });
         } catch (Exception e) {
             log.error("生成图像请求失败", e);
@@ -128,245 +142,58 @@ public class ComfyUIService {
         }
     }
 
-    public Mono<TaskResponse> getTaskStatus(String taskId) {
-        TaskResponse storedTask = taskStatus.get(taskId);
-        if (storedTask == null) {
-            TaskResponse notFound = new TaskResponse();
-            notFound.setTaskId(taskId);
-            notFound.setStatus("NOT_FOUND");
-            notFound.setMessage("任务不存在");
-            return Mono.just(notFound);
-        }
-
-        // 查询ComfyUI历史记录
-        return comfyUIWebClient.get()
-                .uri("/history/{taskId}", taskId)
+    /**
+     * 提交不登记为任务的工作流(例如模型预热)，事件由调用方按prompt_id订阅
+     *
+     * @return ComfyUI实际使用的prompt_id，旧版ComfyUI可能与传入的不同
+     */
+    public Mono<String> submitWorkflow(ComfyUIBackend backend, String promptId, Map<String, Object> workflow) {
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("prompt", workflow);
+        requestBody.put("client_id", backend.getEventChannel().getClientId());
+        requestBody.put("prompt_id", promptId);
+        return backend.getEventChannel().whenOpen(WS_OPEN_TIMEOUT).then(backend.getWebClient().post()
+                .uri("/prompt")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(BodyInserters.fromValue(requestBody))
                 .retrieve()
-                .bodyToMono(String.class)
+                .bodyToMono(String.class))
                 .map(response -> {
                     try {
-                        Map<String, Object> history = objectMapper.readValue(response, new TypeReference<Map<String, Object>>() {});
-                        Map<String, Object> taskHistory = (Map<String, Object>) history.get(taskId);
-
-                        if (taskHistory == null) {
-                            storedTask.setStatus("PENDING");
-                            storedTask.setMessage("任务正在处理中");
-                            return storedTask;
-                        }
-
-                        Map<String, Object> outputs = (Map<String, Object>) taskHistory.get("outputs");
-                        if (outputs == null || outputs.isEmpty()) {
-                            storedTask.setStatus("PROCESSING");
-                            storedTask.setMessage("任务正在处理中");
-                            return storedTask;
-                        }
-
-                        // 查找图像输出
-                        for (Map.Entry<String, Object> entry : outputs.entrySet()) {
-                            Map<String, Object> output = (Map<String, Object>) entry.getValue();
-                            List<Map<String, String>> images = (List<Map<String, String>>) output.get("images");
-
-                            if (images != null && !images.isEmpty()) {
-                                Map<String, String> imageInfo = images.get(0);
-                                String filename = imageInfo.get("filename");
-                                String subfolder = imageInfo.get("subfolder");
-                                String type = imageInfo.get("type");
-
-                                String imageUrl = String.format("/view?filename=%s&subfolder=%s&type=%s",
-                                        filename, subfolder != null ? subfolder : "", type != null ? type : "output");
-
-                                storedTask.setStatus("COMPLETED");
-                                storedTask.setMessage("图像生成完成");
-                                storedTask.setImageUrl(imageUrl);
-                                return storedTask;
-                            }
-                        }
-
-                        storedTask.setStatus("PROCESSING");
-                        storedTask.setMessage("任务正在处理中");
-                        return storedTask;
+                        return objectMapper.readTree(response).path("prompt_id").asText(promptId);
                     } catch (Exception e) {
-                        log.error("解析任务历史失败", e);
-                        storedTask.setStatus("ERROR");
-                        storedTask.setMessage("解析任务状态失败: " + e.getMessage());
-                        return storedTask;
+                        throw new RuntimeException("解析响应失败: " + e.getMessage());
                     }
-                })
-                .switchIfEmpty(Mono.fromCallable(() -> {
-                    storedTask.setStatus("PENDING");
-                    storedTask.setMessage("任务正在排队中");
-                    return storedTask;
-                }))
-                .onErrorReturn(storedTask);
+                });
     }
 
-    /**
-     * 从resources目录加载工作流JSON文件
-     */
-    @SuppressWarnings("unchecked")
-    private Map<String, Object> loadWorkflowFromResource(String workflowFileName) throws IOException {
-        ClassPathResource resource = new ClassPathResource("workflows/" + workflowFileName);
-
-        if (!resource.exists()) {
-            log.error("工作流文件不存在: {}", workflowFileName);
-            throw new RuntimeException("工作流文件不存在: " + workflowFileName);
-        }
-
-        try (InputStream inputStream = resource.getInputStream()) {
-            return objectMapper.readValue(inputStream, new TypeReference<Map<String, Object>>() {});
-        }
+    public Mono<TaskResponse> getTaskStatus(String taskId) {
+        return taskStateStore.lookup(taskId).flatMap(this::persisted);
     }
 
     /**
-     * 根据请求参数动态更新工作流中的参数
+     * 获取任务输出图片的地址，已转存时为MinIO地址，否则为ComfyUI预览地址；任务未完成时为空
      */
-    private void updateWorkflowParameters(Map<String, Object> workflow, GenerateImageRequest request) {
-        for (Map.Entry<String, Object> entry : workflow.entrySet()) {
-            Object node = entry.getValue();
-            String promoteId = getPromptId(request);
-            String widthId = getWidthId(request);
-            String ksamplerId = getKSamplerId(request);
-            String loadImageId = getLoadImage(request);
-            List<String> updateId = Arrays.asList(widthId,ksamplerId,promoteId,loadImageId);
-            //修改seed值/提示词/图片长高
-            if(updateId.contains(entry.getKey())){
-                if (node instanceof Map) {
-                    updateNodeParameters((Map<String, Object>) node, request);
-                }
-            }
-        }
-    }
-
-    private String getKSamplerId(GenerateImageRequest request){
-        String workflowTemplate = request.getWorkflowTemplate();
-        if(Objects.equals("qwen-image-edit-pro.json",workflowTemplate) ||
-                Objects.equals("qwen-3d-IP.json",workflowTemplate)){
-            return "5";
-        }
-        if(Objects.equals("qwen-image-pro.json",workflowTemplate)){
-            return "3";
-        }
-        return null;
-    }
-    private String getLoadImage(GenerateImageRequest request){
-        String workflowTemplate = request.getWorkflowTemplate();
-        if(Objects.equals("qwen-image-edit-pro.json",workflowTemplate)){
-            return "18";
-        }
-        return null;
-    }
-    private String getWidthId(GenerateImageRequest request){
-        String workflowTemplate = request.getWorkflowTemplate();
-        if(Objects.equals("qwen-image-pro.json",workflowTemplate)){
-            return "58";
-        }
-        if(Objects.equals("qwen-3d-IP.json.json",workflowTemplate)){
-            return "8";
-        }
-        return null;
-    }
-
-    private String getPromptId(GenerateImageRequest request){
-        String workflowTemplate = request.getWorkflowTemplate();
-        if(Objects.equals("qwen-image-pro.json",workflowTemplate)){
-            return "6";
-        }
-        if(Objects.equals("qwen-3d-IP.json",workflowTemplate)){
-            return "3";
-        }
-        if(Objects.equals("qwen-image-edit-pro.json",workflowTemplate)){
-            return "17";
-        }
-        return null;
+    public Mono<String> getImagePreviewUrl(String taskId) {
+        return taskStateStore.lookup(taskId)
+                .flatMap(this::persisted)
+                .filter(task -> task.getImageUrl() != null)
+                .flatMap(task -> {
+                    if (!ResultStorageService.isComfyUIOutput(task)) {
+                        return Mono.just(task.getImageUrl());
+                    }
+                    ComfyUIBackend backend = comfyUIBackendPool.get(task.getBackend());
+                    return Mono.justOrEmpty(backend == null ? null : backend.getBaseUrl() + task.getImageUrl());
+                });
     }
 
     /**
-     * 更新单个节点的参数
+     * 已完成但结果尚未转存（例如由/history恢复的任务）时先转存
      */
-    @SuppressWarnings("unchecked")
-    private void updateNodeParameters(Map<String, Object> node, GenerateImageRequest request) {
-        String classType = (String) node.get("class_type");
-        Map<String, Object> inputs = (Map<String, Object>) node.get("inputs");
-
-        if (inputs == null) {
-            return;
-        }
-        String prompt = request.getPrompt();
-        if(Objects.equals("qwen-3d-IP.json",request.getWorkflowTemplate())){
-            prompt = "3D画面；"+prompt;
-        }
-        switch (classType){
-            case "KSampler": inputs.put("seed",System.currentTimeMillis());break;
-            case "CLIPTextEncode":  inputs.put("text", prompt);break;
-            case "TextEncodeQwenImageEdit": inputs.put("prompt", prompt);break;
-            case "LoadImage":
-                inputs.put("image", request.getImageName());
-                break;
-            case "EmptySD3LatentImage":
-            case "EmptyLatentImage":
-                inputs.put("width",request.getWidth()== null ? 300 : request.getWidth());
-                inputs.put("height",request.getHeight()== null ? 500 : request.getHeight());
-                break;
-        }
-    }
-
-
-    public String getImagePreviewUrl(String taskId) {
-        try {
-            // 查询ComfyUI历史记录获取图片信息
-            String response = comfyUIWebClient.get()
-                    .uri("/history/{taskId}", taskId)
-                    .retrieve()
-                    .bodyToMono(String.class)
-                    .block(); // 同步获取响应
-
-            if (response != null) {
-                Map<String, Object> history = objectMapper.readValue(response, new TypeReference<Map<String, Object>>() {});
-                Map<String, Object> taskHistory = (Map<String, Object>) history.get(taskId);
-
-                if (taskHistory != null) {
-                    Map<String, Object> outputs = (Map<String, Object>) taskHistory.get("outputs");
-                    if (outputs != null && !outputs.isEmpty()) {
-                        // 查找图像输出
-                        for (Map.Entry<String, Object> entry : outputs.entrySet()) {
-                            Map<String, Object> output = (Map<String, Object>) entry.getValue();
-                            List<Map<String, String>> images = (List<Map<String, String>>) output.get("images");
-
-                            if (images != null && !images.isEmpty()) {
-                                Map<String, String> imageInfo = images.get(0);
-                                String filename = imageInfo.get("filename");
-                                String subfolder = imageInfo.get("subfolder");
-                                String type = imageInfo.get("type");
-
-                                // 构造预览URL
-                                return String.format("%s/view?filename=%s&subfolder=%s&type=%s",
-                                        baseUrl,
-                                        filename,
-                                        subfolder != null ? subfolder : "",
-                                        type != null ? type : "output");
-                            }
-                        }
-                    }
-                }
-            }
-            return null;
-        } catch (Exception e) {
-            log.error("获取图片预览URL失败, taskId: {}", taskId, e);
-            return null;
+    private Mono<TaskResponse> persisted(TaskResponse task) {
+        if ("COMPLETED".equals(task.getStatus()) && ResultStorageService.isComfyUIOutput(task)) {
+            return resultStorageService.persist(task.getTaskId()).defaultIfEmpty(task);
         }
-    }
-
-    // 上传图像到 ComfyUI /upload/image
-    private String uploadImage(File imageFile) throws Exception {
-        FileSystemResource resource = new FileSystemResource(imageFile);
-        Mono<String> responseMono = comfyUIWebClient.post()
-                .uri("/upload/image")
-                .contentType(MediaType.MULTIPART_FORM_DATA)
-                .body(BodyInserters.fromMultipartData("image", resource))
-                .retrieve()
-                .bodyToMono(String.class);
-
-        String responseBody = responseMono.block();
-        return JSONObject.parseObject(responseBody).getString("name");
+        return Mono.just(task);
     }
 }
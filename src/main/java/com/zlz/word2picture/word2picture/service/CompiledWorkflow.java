@@ -0,0 +1,76 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.zlz.word2picture.word2picture.model.GenerateImageRequest;
+import com.zlz.word2picture.word2picture.model.WorkflowManifest;
+
+import java.util.*;
+
+/**
+ * 预编译的工作流模板
+ * 模板节点在编译时冻结为不可变结构，参数绑定计划也只在编译时解析一次；
+ * 每次请求只复制被修改的节点，其余节点与模板共享。
+ */
+public final class CompiledWorkflow {
+
+    private final String name;
+    private final Map<String, Object> nodes;
+    private final WorkflowBinding binding;
+
+    private CompiledWorkflow(String name, Map<String, Object> nodes, WorkflowBinding binding) {
+        this.name = name;
+        this.nodes = nodes;
+        this.binding = binding;
+    }
+
+    /**
+     * 编译工作流：冻结节点并解析参数绑定计划
+     *
+     * @param name     模板文件名
+     * @param workflow 解析后的工作流JSON
+     * @param manifest 绑定清单，可为空
+     */
+    @SuppressWarnings("unchecked")
+    public static CompiledWorkflow compile(String name, Map<String, Object> workflow, WorkflowManifest manifest) {
+        Map<String, Object> frozen = (Map<String, Object>) freeze(workflow);
+        return new CompiledWorkflow(name, frozen, WorkflowBinding.resolve(frozen, manifest));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 模板原始节点（只读）
+     */
+    public Map<String, Object> getNodes() {
+        return nodes;
+    }
+
+    public WorkflowBinding getBinding() {
+        return binding;
+    }
+
+    /**
+     * 根据请求参数生成本次提交的工作流，未修改的节点直接引用模板
+     */
+    public Map<String, Object> instantiate(GenerateImageRequest request) {
+        Map<String, Object> workflow = new LinkedHashMap<>(nodes);
+        binding.apply(nodes, workflow, request);
+        return workflow;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object freeze(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            ((Map<String, Object>) value).forEach((k, v) -> copy.put(k, freeze(v)));
+            return Collections.unmodifiableMap(copy);
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            ((List<Object>) value).forEach(v -> copy.add(freeze(v)));
+            return Collections.unmodifiableList(copy);
+        }
+        return value;
+    }
+}
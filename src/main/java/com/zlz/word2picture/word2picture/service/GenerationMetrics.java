@@ -0,0 +1,120 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 生成链路的耗时指标
+ * 单步耗时用time()包装，跨越多个事件的阶段(排队、首个进度、端到端)按任务记录开始时间
+ */
+@Component
+public class GenerationMetrics {
+
+    @Autowired
+    private MeterRegistry registry;
+
+    // taskId -> 各阶段时间点，未正常结束的任务随过期清理
+    private final Cache<String, TaskTiming> timings = Caffeine.newBuilder()
+            .expireAfterWrite(Duration.ofHours(2))
+            .maximumSize(100_000)
+            .build();
+
+    /**
+     * 记录Mono从订阅到结束的耗时，附加outcome标签(success/error/cancelled)
+     */
+    public <T> Mono<T> time(Mono<T> source, String name, String... tags) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            return source.doFinally(signal -> sample.stop(Timer.builder(name)
+                    .tags(tags)
+                    .tag("outcome", outcome(signal))
+                    .register(registry)));
+        });
+    }
+
+    public void record(String name, long nanos, String... tags) {
+        registry.timer(name, tags).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 任务进入调度队列
+     */
+    public void onAdmitted(String taskId, String template) {
+        timings.put(taskId, new TaskTiming(template, System.nanoTime()));
+    }
+
+    /**
+     * 任务出队提交到后端，记录排队耗时
+     */
+    public void onSubmitted(String taskId, String backend) {
+        TaskTiming timing = timings.getIfPresent(taskId);
+        if (timing == null) {
+            return;
+        }
+        timing.backend = backend;
+        timing.submittedAt = System.nanoTime();
+        record("word2picture.generation.queue.wait", timing.submittedAt - timing.admittedAt,
+                "template", timing.template, "backend", backend);
+    }
+
+    /**
+     * 收到ComfyUI的第一个执行事件，记录提交到开始执行的耗时，重复调用只记录一次
+     */
+    public void onFirstProgress(String taskId) {
+        TaskTiming timing = timings.getIfPresent(taskId);
+        if (timing == null || timing.submittedAt == 0 || timing.firstProgressSeen) {
+            return;
+        }
+        timing.firstProgressSeen = true;
+        record("word2picture.generation.first.progress", System.nanoTime() - timing.submittedAt,
+                "template", timing.template, "backend", timing.backend);
+    }
+
+    /**
+     * 任务结束，记录按工作流模板统计的端到端耗时(含排队)
+     */
+    public void onFinished(String taskId, String outcome) {
+        TaskTiming timing = timings.getIfPresent(taskId);
+        if (timing == null) {
+            return;
+        }
+        timings.invalidate(taskId);
+        record("word2picture.generation.duration", System.nanoTime() - timing.admittedAt,
+                "template", timing.template,
+                "backend", timing.backend != null ? timing.backend : "none",
+                "outcome", outcome);
+    }
+
+    private static String outcome(SignalType signal) {
+        switch (signal) {
+            case ON_COMPLETE:
+                return "success";
+            case ON_ERROR:
+                return "error";
+            default:
+                return "cancelled";
+        }
+    }
+
+    private static final class TaskTiming {
+        private final String template;
+        private final long admittedAt;
+        private volatile String backend;
+        private volatile long submittedAt;
+        private volatile boolean firstProgressSeen;
+
+        private TaskTiming(String template, long admittedAt) {
+            this.template = template;
+            this.admittedAt = admittedAt;
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.zlz.word2picture.word2picture.config.ComfyUIProperties;
+import com.zlz.word2picture.word2picture.model.GenerateImageRequest;
+import com.zlz.word2picture.word2picture.model.TaskPriority;
+import com.zlz.word2picture.word2picture.model.TaskProgress;
+import com.zlz.word2picture.word2picture.model.TaskResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * 生成任务调度器，位于接口和ComfyUI之间
+ * 每个后端同时提交的任务数受限，其余任务在本服务内排队：高优先级先出队，同一优先级内按客户端轮转，
+ * 避免单个客户端的大批量请求占满ComfyUI的FIFO队列；等待队列已满时直接返回429。
+ * 排队位置通过任务进度流(QUEUED)推送；模型预热的优先级最低，只在没有任务等待且后端空闲时执行
+ */
+@Slf4j
+@Service
+public class GenerationScheduler {
+
+    private static final String ANONYMOUS_CLIENT = "anonymous";
+
+    @Autowired
+    private ComfyUIProperties properties;
+    @Autowired
+    private ComfyUIBackendPool comfyUIBackendPool;
+    @Autowired
+    private ComfyUIService comfyUIService;
+    @Autowired
+    private WorkflowTemplateRegistry workflowTemplateRegistry;
+    @Autowired
+    private TaskStateStore taskStateStore;
+    @Autowired
+    private TaskProgressService taskProgressService;
+    @Autowired
+    private ResultCacheService resultCacheService;
+    @Autowired
+    private GenerationMetrics generationMetrics;
+    @Autowired
+    private NodeTimingProfiler nodeTimingProfiler;
+
+    // 每个优先级一个等待队列，以下状态都由this锁保护
+    private final Map<TaskPriority, FairQueue> queues = new EnumMap<>(TaskPriority.class);
+    // 后端名 -> 已提交且未结束的任务数
+    private final Map<String, Integer> running = new HashMap<>();
+    private int waiting;
+    // 后端名 -> 模板 -> 待执行的预热，同一后端同一模板只保留一个
+    private final Map<String, Map<String, Supplier<Mono<Void>>>> warmups = new HashMap<>();
+    // 后端名|模板 -> 任务最近一次在该后端开始执行的时间
+    private final Map<String, Long> lastStarted = new ConcurrentHashMap<>();
+    // 排队位置有变化待推送 / 正有线程在推送
+    private final AtomicBoolean positionsDirty = new AtomicBoolean();
+    private final AtomicBoolean publishing = new AtomicBoolean();
+
+    @PostConstruct
+    public void init() {
+        for (TaskPriority priority : TaskPriority.values()) {
+            queues.put(priority, new FairQueue());
+        }
+        // 后端恢复后继续分配排队中的任务
+        comfyUIBackendPool.addRecoveryListener(backend -> dispatch());
+    }
+
+    /**
+     * 任务入队，立即返回任务ID，之后通过进度流或状态接口获取进展
+     *
+     * @param clientKey 用于公平分配的客户端标识
+     */
+    public Mono<TaskResponse> submit(GenerateImageRequest request, String clientKey) {
+        return Mono.fromCallable(() -> enqueue(Collections.singletonList(request), clientKey).get(0));
+    }
+
+    /**
+     * 一组任务整体入队，等待队列放不下全部任务时整体拒绝
+     */
+    public Mono<List<TaskResponse>> submitAll(List<GenerateImageRequest> requests, String clientKey) {
+        return Mono.fromCallable(() -> enqueue(requests, clientKey));
+    }
+
+    public synchronized int getWaitingCount() {
+        return waiting;
+    }
+
+    public synchronized int getRunningCount(String backend) {
+        return running.getOrDefault(backend, 0);
+    }
+
+    /**
+     * 模板最近一次在该后端开始执行的时间(不含预热)，未执行过为0
+     */
+    public long getLastStarted(String backend, String template) {
+        return lastStarted.getOrDefault(backend + "|" + template, 0L);
+    }
+
+    /**
+     * 提交模型预热：优先级低于所有排队任务，只在没有任务等待且该后端没有已提交的任务时执行，
+     * 执行期间占用该后端的一个名额；同一后端同一模板只保留一个，不登记任务、不推送进度
+     *
+     * @param warmup 开始执行时订阅，结束后释放名额
+     */
+    public void warmUp(ComfyUIBackend backend, String template, Supplier<Mono<Void>> warmup) {
+        synchronized (this) {
+            warmups.computeIfAbsent(backend.getName(), name -> new LinkedHashMap<>()).putIfAbsent(template, warmup);
+        }
+        dispatch();
+    }
+
+    private List<TaskResponse> enqueue(List<GenerateImageRequest> requests, String clientKey) {
+        // 模板为空或不存在时整批以400拒绝，不进入队列；请求体注解校验不覆盖批量请求中的各项
+        List<String> keys = new ArrayList<>(requests.size());
+        for (GenerateImageRequest request : requests) {
+            if (StringUtils.isBlank(request.getWorkflowTemplate())) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "工作流不能为空");
+            }
+            if (!workflowTemplateRegistry.exists(request.getWorkflowTemplate())) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "工作流模板不存在: " + request.getWorkflowTemplate());
+            }
+            keys.add(resultCacheService.key(workflowTemplateRegistry.get(request.getWorkflowTemplate()), request));
+        }
+
+        String client = StringUtils.isBlank(clientKey) ? ANONYMOUS_CLIENT : clientKey;
+        List<TaskResponse> tasks = new ArrayList<>(requests.size());
+        List<Job> jobs = new ArrayList<>(requests.size());
+        // 命中结果缓存新建的已完成任务，整批被接受后才登记
+        List<TaskResponse> cached = new ArrayList<>();
+        synchronized (this) {
+            // 本批内相同请求也只执行一次
+            Map<String, TaskResponse> admitted = new HashMap<>();
+            for (int i = 0; i < requests.size(); i++) {
+                String key = keys.get(i);
+                TaskResponse task = key == null ? null : admitted.get(key);
+                if (task == null) {
+                    task = reuse(key, cached);
+                }
+                if (task == null) {
+                    task = new TaskResponse();
+                    task.setTaskId(UUID.randomUUID().toString());
+                    task.setStatus("QUEUED");
+                    task.setMessage("任务排队中");
+                    task.setTimestamp(System.currentTimeMillis());
+                    jobs.add(new Job(task, requests.get(i), TaskPriority.of(requests.get(i).getPriority()), client, key));
+                }
+                if (key != null) {
+                    admitted.put(key, task);
+                }
+                tasks.add(task);
+            }
+            if (!jobs.isEmpty() && !comfyUIBackendPool.hasHealthyBackend()) {
+                throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "没有可用的ComfyUI后端");
+            }
+            if (waiting + jobs.size() > properties.getScheduler().getMaxQueueSize()) {
+                log.warn("排队任务已满({})，拒绝{}个任务, client: {}", waiting, jobs.size(), client);
+                throw new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, "排队任务已满，请稍后重试");
+            }
+            for (TaskResponse task : cached) {
+                taskStateStore.register(task);
+                log.info("命中结果缓存: {}", task.getTaskId());
+            }
+            for (Job job : jobs) {
+                taskStateStore.register(job.task);
+                generationMetrics.onAdmitted(job.task.getTaskId(), job.request.getWorkflowTemplate());
+                resultCacheService.markInFlight(job.cacheKey, job.task.getTaskId());
+                queues.get(job.priority).offer(job);
+            }
+            waiting += jobs.size();
+        }
+        jobs.forEach(job -> log.info("任务入队: {}, 优先级: {}, client: {}", job.task.getTaskId(), job.priority, client));
+        if (!jobs.isEmpty()) {
+            dispatch();
+        }
+        return tasks;
+    }
+
+    /**
+     * 相同请求已有结果时返回一个已完成的新任务(同时加入cached，由调用方登记)，正在执行时返回执行中的任务
+     */
+    private TaskResponse reuse(String key, List<TaskResponse> cached) {
+        TaskResponse result = resultCacheService.getCompleted(key);
+        if (result != null) {
+            TaskResponse task = new TaskResponse();
+            task.setTaskId(UUID.randomUUID().toString());
+            task.setStatus("COMPLETED");
+            task.setMessage("命中结果缓存");
+            task.setImageUrl(result.getImageUrl());
+            task.setBackend(result.getBackend());
+            task.setTimestamp(System.currentTimeMillis());
+            cached.add(task);
+            return task;
+        }
+        String inFlight = resultCacheService.getInFlight(key);
+        TaskResponse task = inFlight == null ? null : taskStateStore.get(inFlight);
+        if (task != null) {
+            log.info("相同请求正在执行，合并到任务: {}", inFlight);
+        }
+        return task;
+    }
+
+    /**
+     * 把排队任务分配给有空闲名额的后端，并推送剩余任务的排队位置
+     */
+    private void dispatch() {
+        List<Runnable> starts = new ArrayList<>();
+        synchronized (this) {
+            int limit = properties.getScheduler().getMaxConcurrentPerBackend();
+            while (waiting > 0) {
+                ComfyUIBackend backend = comfyUIBackendPool.select(b -> running.getOrDefault(b.getName(), 0) < limit);
+                if (backend == null) {
+                    break;
+                }
+                Job job = poll();
+                waiting--;
+                running.merge(backend.getName(), 1, Integer::sum);
+                starts.add(() -> start(job, backend));
+            }
+            if (waiting == 0) {
+                startWarmUps(starts);
+            }
+        }
+        starts.forEach(Runnable::run);
+        publishPositions();
+    }
+
+    /**
+     * 空闲的健康后端各取一个待执行的预热，调用方持有this锁
+     */
+    private void startWarmUps(List<Runnable> starts) {
+        for (Iterator<Map.Entry<String, Map<String, Supplier<Mono<Void>>>>> it = warmups.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Map<String, Supplier<Mono<Void>>>> entry = it.next();
+            ComfyUIBackend backend = comfyUIBackendPool.get(entry.getKey());
+            if (backend == null || !backend.isHealthy() || running.containsKey(backend.getName())) {
+                continue;
+            }
+            Iterator<Map.Entry<String, Supplier<Mono<Void>>>> pending = entry.getValue().entrySet().iterator();
+            Map.Entry<String, Supplier<Mono<Void>>> next = pending.next();
+            pending.remove();
+            if (!pending.hasNext()) {
+                it.remove();
+            }
+            running.merge(backend.getName(), 1, Integer::sum);
+            starts.add(() -> startWarmUp(next.getKey(), next.getValue(), backend));
+        }
+    }
+
+    private void startWarmUp(String template, Supplier<Mono<Void>> warmup, ComfyUIBackend backend) {
+        Mono.defer(warmup)
+                .timeout(Duration.ofMillis(properties.getScheduler().getMaxRunningTime()))
+                .doFinally(signal -> release(backend))
+                .subscribe(v -> { }, e -> log.warn("预热失败: {}, 后端: {}, {}", template, backend.getName(), e.getMessage()));
+    }
+
+    /**
+     * 服务重启前已提交到ComfyUI的任务继续占用所在后端的名额，并重新跟踪进度
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeRecovered() {
+        for (TaskResponse task : taskStateStore.takeRecovered()) {
+            ComfyUIBackend backend = comfyUIBackendPool.get(task.getBackend());
+            if (backend == null) {
+                taskStateStore.onFailed(task.getTaskId(), "服务重启后找不到任务所在的ComfyUI后端: " + task.getBackend());
+                continue;
+            }
+            synchronized (this) {
+                running.merge(backend.getName(), 1, Integer::sum);
+            }
+            log.info("恢复跟踪重启前提交的任务: {}, 后端: {}", task.getTaskId(), backend.getName());
+            awaitFinish(task.getTaskId(), backend, null);
+            taskProgressService.resume(task.getTaskId(), backend);
+        }
+    }
+
+    private void start(Job job, ComfyUIBackend backend) {
+        String taskId = job.task.getTaskId();
+        log.info("任务出队: {}, 后端: {}, 排队耗时: {}ms", taskId, backend.getName(),
+                System.currentTimeMillis() - job.task.getTimestamp());
+        awaitFinish(taskId, backend, job.cacheKey);
+        lastStarted.put(backend.getName() + "|" + job.request.getWorkflowTemplate(), System.currentTimeMillis());
+
+        generationMetrics.onSubmitted(taskId, backend.getName());
+        nodeTimingProfiler.onSubmitted(taskId, job.request.getWorkflowTemplate(), backend.getName());
+        taskProgressService.broadcastProgress(taskId, "PENDING", 0, "已提交，等待ComfyUI执行");
+        comfyUIService.submit(job.task, backend, job.request)
+                .subscribe(task -> { }, e -> { });
+    }
+
+    /**
+     * 任务进度流结束（成功/失败/提交失败）时释放后端名额；收不到结束事件时按最长执行时间释放
+     */
+    private void awaitFinish(String taskId, ComfyUIBackend backend, String cacheKey) {
+        taskProgressService.progress(taskId)
+                .then()
+                .timeout(Duration.ofMillis(properties.getScheduler().getMaxRunningTime()))
+                .onErrorResume(e -> {
+                    log.warn("任务超过最长执行时间仍未结束，释放后端名额: {}", taskId);
+                    return Mono.empty();
+                })
+                .doFinally(signal -> {
+                    resultCacheService.onFinished(cacheKey, taskId);
+                    generationMetrics.onFinished(taskId, outcome(taskId));
+                    nodeTimingProfiler.onFinished(taskId);
+                    release(backend);
+                })
+                .subscribe();
+    }
+
+    private String outcome(String taskId) {
+        TaskResponse task = taskStateStore.get(taskId);
+        if (task == null || !TaskStateStore.isTerminal(task)) {
+            return "timeout";
+        }
+        return "COMPLETED".equals(task.getStatus()) ? "success" : "error";
+    }
+
+    private void release(ComfyUIBackend backend) {
+        synchronized (this) {
+            running.computeIfPresent(backend.getName(), (name, count) -> count > 1 ? count - 1 : null);
+        }
+        dispatch();
+    }
+
+    /**
+     * 先取高优先级队列
+     */
+    private Job poll() {
+        for (FairQueue queue : queues.values()) {
+            if (!queue.isEmpty()) {
+                return queue.poll();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 推送等待任务的排队位置和预计剩余时间；同一时间只有一个线程推送，推送期间的出入队合并到下一轮
+     * 锁内只记录各任务的位置，估算和推送在锁外进行，不阻塞提交和释放名额
+     */
+    private void publishPositions() {
+        positionsDirty.set(true);
+        while (positionsDirty.get() && publishing.compareAndSet(false, true)) {
+            try {
+                positionsDirty.set(false);
+                List<Waiting> snapshot;
+                synchronized (this) {
+                    snapshot = snapshotPositions();
+                }
+                broadcastPositions(snapshot);
+            } finally {
+                publishing.set(false);
+            }
+        }
+    }
+
+    /**
+     * 按出队顺序记录每个等待任务前面的任务数，调用方持有this锁
+     */
+    private List<Waiting> snapshotPositions() {
+        List<Waiting> snapshot = new ArrayList<>(waiting);
+        int position = 0;
+        for (FairQueue queue : queues.values()) {
+            for (Job job : queue.inPollOrder()) {
+                boolean changed = job.position != position;
+                job.position = position;
+                snapshot.add(new Waiting(job.task.getTaskId(), job.request.getWorkflowTemplate(), position, changed));
+                position++;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * 只推送位置发生变化的任务
+     * 预计剩余时间 = (已提交任务的剩余时间 + 前面排队任务的预计执行时间) / 可用后端数 + 本任务的预计执行时间
+     */
+    private void broadcastPositions(List<Waiting> snapshot) {
+        if (snapshot.isEmpty()) {
+            return;
+        }
+        int backends = Math.max(1, (int) comfyUIBackendPool.getBackends().stream().filter(ComfyUIBackend::isHealthy).count());
+        long ahead = nodeTimingProfiler.backlogMillis();
+        // 同一模板的预计执行时间只查询一次
+        Map<String, Long> expectedByTemplate = new HashMap<>();
+        for (Waiting job : snapshot) {
+            long expected = expectedByTemplate.computeIfAbsent(job.template(),
+                    template -> nodeTimingProfiler.expectedMillis(template, null));
+            if (job.changed()) {
+                TaskProgress update = new TaskProgress(job.taskId(), "QUEUED", 0,
+                        job.position() == 0 ? "排队中，即将开始" : "排队中，前面还有" + job.position() + "个任务");
+                update.setQueuePosition(job.position());
+                if (expected >= 0) {
+                    update.setEtaSeconds((int) Math.ceil((ahead / backends + expected) / 1000.0));
+                }
+                taskProgressService.broadcastProgress(update);
+            }
+            ahead += Math.max(0, expected);
+        }
+    }
+
+    private record Waiting(String taskId, String template, int position, boolean changed) {
+    }
+
+    private static final class Job {
+        private final TaskResponse task;
+        private final GenerateImageRequest request;
+        private final TaskPriority priority;
+        private final String clientKey;
+        // 结果缓存key，随机种子的任务为null
+        private final String cacheKey;
+        // 上次推送的排队位置
+        private int position = -1;
+
+        private Job(TaskResponse task, GenerateImageRequest request, TaskPriority priority, String clientKey, String cacheKey) {
+            this.task = task;
+            this.request = request;
+            this.priority = priority;
+            this.clientKey = clientKey;
+            this.cacheKey = cacheKey;
+        }
+    }
+
+    /**
+     * 同一优先级的等待队列：每个客户端一个FIFO，出队时在客户端之间轮转
+     */
+    private static final class FairQueue {
+        private final Map<String, Deque<Job>> byClient = new HashMap<>();
+        private final Deque<String> clients = new ArrayDeque<>();
+
+        void offer(Job job) {
+            byClient.computeIfAbsent(job.clientKey, key -> {
+                clients.addLast(key);
+                return new ArrayDeque<>();
+            }).addLast(job);
+        }
+
+        Job poll() {
+            String client = clients.pollFirst();
+            if (client == null) {
+                return null;
+            }
+            Deque<Job> jobs = byClient.get(client);
+            Job job = jobs.pollFirst();
+            if (jobs.isEmpty()) {
+                byClient.remove(client);
+            } else {
+                clients.addLast(client);
+            }
+            return job;
+        }
+
+        boolean isEmpty() {
+            return clients.isEmpty();
+        }
+
+        /**
+         * 按poll的轮转顺序列出全部等待任务
+         */
+        List<Job> inPollOrder() {
+            List<Iterator<Job>> iterators = new ArrayList<>(clients.size());
+            for (String client : clients) {
+                iterators.add(byClient.get(client).iterator());
+            }
+            List<Job> ordered = new ArrayList<>();
+            while (!iterators.isEmpty()) {
+                for (Iterator<Iterator<Job>> it = iterators.iterator(); it.hasNext(); ) {
+                    Iterator<Job> jobs = it.next();
+                    if (jobs.hasNext()) {
+                        ordered.add(jobs.next());
+                    } else {
+                        it.remove();
+                    }
+                }
+            }
+            return ordered;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.alibaba.fastjson.JSONObject;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.zlz.word2picture.word2picture.config.HttpClientFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 图生图输入图片的导入
+ * 通过WebClient拉取源图片并以流的方式直接转发到ComfyUI的/upload/image，
+ * 只有ComfyUI无法识别的格式才解码转换为PNG，全程不落临时文件、不阻塞调用线程；
+ * 已导入的图片按源URL和内容哈希缓存，重复编辑同一张图片时不再下载和上传
+ */
+@Slf4j
+@Service
+public class ImageIngestService {
+
+    /**
+     * ComfyUI(PIL)可直接读取的格式及对应扩展名
+     */
+    private static final Map<String, String> SUPPORTED_TYPES = Map.of(
+            "image/png", "png",
+            "image/jpeg", "jpg",
+            "image/jpg", "jpg",
+            "image/webp", "webp",
+            "image/gif", "gif",
+            "image/bmp", "bmp",
+            "image/tiff", "tiff");
+
+    // 整图读入内存（转码/计算哈希）的上限
+    private static final int MAX_CONVERT_BYTES = 64 * 1024 * 1024;
+
+    // 拉取源图片的客户端
+    private WebClient sourceWebClient;
+
+    @Autowired
+    private HttpClientFactory httpClientFactory;
+    @Autowired
+    private GenerationMetrics generationMetrics;
+
+    @Value("${comfyui.upload-cache.max-size:1000}")
+    private long cacheMaxSize;
+    @Value("${comfyui.upload-cache.dedup-max-bytes:16777216}")
+    private long dedupMaxBytes;
+
+    // 后端名+源图片URL -> ComfyUI图片名，同一URL的并发导入只会执行一次
+    private AsyncCache<String, String> urlCache;
+    // 后端名+图片内容SHA-256 -> ComfyUI图片名
+    private Cache<String, String> hashCache;
+
+    @PostConstruct
+    public void init() {
+        sourceWebClient = httpClientFactory.create("image-ingest", null);
+        urlCache = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .recordStats()
+                .buildAsync();
+        hashCache = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 导入远程图片到ComfyUI，同一URL或相同内容的图片命中缓存时不再下载/上传
+     *
+     * @return ComfyUI返回的图片名，用于LoadImage节点
+     */
+    public Mono<String> ingest(ComfyUIBackend backend, String imageUrl) {
+        return Mono.defer(() -> Mono.fromFuture(urlCache.get(cacheKey(backend, imageUrl),
+                (key, executor) -> generationMetrics.time(fetchAndUpload(backend, imageUrl),
+                        "word2picture.image.ingest", "backend", backend.getName()).toFuture())));
+    }
+
+    /**
+     * 上传内存中的PNG图片(例如预热用的占位图)，相同内容只上传一次
+     *
+     * @return ComfyUI返回的图片名，用于LoadImage节点
+     */
+    public Mono<String> ingestPng(ComfyUIBackend backend, byte[] png) {
+        return Mono.defer(() -> {
+            String hash = cacheKey(backend, sha256(png));
+            String existing = hashCache.getIfPresent(hash);
+            if (existing != null) {
+                return Mono.just(existing);
+            }
+            return upload(backend, Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(png)), "png", MediaType.IMAGE_PNG)
+                    .doOnNext(name -> hashCache.put(hash, name));
+        });
+    }
+
+    /**
+     * ComfyUI报告图片不存在时（例如input目录被清理）移除对应的缓存
+     */
+    public void invalidate(ComfyUIBackend backend, String imageName) {
+        String prefix = cacheKey(backend, "");
+        urlCache.asMap().entrySet().removeIf(entry -> entry.getKey().startsWith(prefix)
+                && imageName.equals(entry.getValue().getNow(null)));
+        hashCache.asMap().entrySet().removeIf(entry -> entry.getKey().startsWith(prefix)
+                && imageName.equals(entry.getValue()));
+        log.info("ComfyUI[{}]输入图片已失效，移除缓存: {}", backend.getName(), imageName);
+    }
+
+    /**
+     * 判断提交失败是否因为LoadImage引用的图片在ComfyUI上不存在
+     */
+    public static boolean isMissingImage(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof WebClientResponseException
+                    && ((WebClientResponseException) e).getStatusCode() == HttpStatus.BAD_REQUEST
+                    && ((WebClientResponseException) e).getResponseBodyAsString().contains("Invalid image file")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public CacheStats urlCacheStats() {
+        return urlCache.synchronous().stats();
+    }
+
+    public CacheStats hashCacheStats() {
+        return hashCache.stats();
+    }
+
+    private static String cacheKey(ComfyUIBackend backend, String key) {
+        return backend.getName() + "|" + key;
+    }
+
+    private Mono<String> fetchAndUpload(ComfyUIBackend backend, String imageUrl) {
+        return sourceWebClient.get()
+                .uri(URI.create(imageUrl))
+                .exchangeToMono(response -> {
+                    if (!response.statusCode().is2xxSuccessful()) {
+                        return response.createException().flatMap(Mono::error);
+                    }
+                    MediaType contentType = response.headers().contentType().orElse(null);
+                    long length = response.headers().contentLength().orElse(-1L);
+                    boolean convert = needsConversion(contentType);
+                    if (convert || (length >= 0 && length <= dedupMaxBytes)) {
+                        // 小图片先读入内存计算哈希，内容相同则跳过上传
+                        return readBytes(response).flatMap(bytes -> {
+                            String hash = cacheKey(backend, sha256(bytes));
+                            String existing = hashCache.getIfPresent(hash);
+                            if (existing != null) {
+                                return Mono.just(existing);
+                            }
+                            Mono<byte[]> payload = convert ? convertToPng(bytes) : Mono.just(bytes);
+                            return payload.flatMap(data -> upload(backend,
+                                            Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(data)),
+                                            convert ? "png" : extension(imageUrl, contentType),
+                                            convert ? MediaType.IMAGE_PNG : mediaType(contentType)))
+                                    .doOnNext(name -> hashCache.put(hash, name));
+                        });
+                    }
+                    // 大图片或未知大小时直接流式转发，边传边计算哈希
+                    MessageDigest digest = newDigest();
+                    Flux<DataBuffer> body = response.bodyToFlux(DataBuffer.class)
+                            .doOnNext(buffer -> digest.update(buffer.asByteBuffer()));
+                    return upload(backend, body, extension(imageUrl, contentType), mediaType(contentType))
+                            .doOnNext(name -> hashCache.asMap().putIfAbsent(cacheKey(backend, hex(digest.digest())), name));
+                })
+                .doOnNext(name -> log.info("图片已导入ComfyUI[{}]: {} -> {}", backend.getName(), imageUrl, name))
+                .onErrorMap(e -> new RuntimeException("导入图片失败: " + imageUrl + ", " + e.getMessage(), e));
+    }
+
+    /**
+     * 以流的方式上传图片到ComfyUI /upload/image
+     */
+    private Mono<String> upload(ComfyUIBackend backend, Flux<DataBuffer> body, String extension, MediaType contentType) {
+        MultipartBodyBuilder builder = new MultipartBodyBuilder();
+        builder.asyncPart("image", body, DataBuffer.class)
+                .filename("ingest-" + UUID.randomUUID() + "." + extension)
+                .contentType(contentType);
+        return generationMetrics.time(backend.getWebClient().post()
+                        .uri("/upload/image")
+                        .contentType(MediaType.MULTIPART_FORM_DATA)
+                        .body(BodyInserters.fromMultipartData(builder.build()))
+                        .retrieve()
+                        .bodyToMono(String.class),
+                        "word2picture.comfyui.upload", "backend", backend.getName())
+                .map(responseBody -> JSONObject.parseObject(responseBody).getString("name"));
+    }
+
+    /**
+     * 非ComfyUI支持的图片格式(例如avif)才需要转码，未声明类型时按原样转发
+     */
+    private static boolean needsConversion(MediaType contentType) {
+        if (contentType == null || !"image".equals(contentType.getType())) {
+            return false;
+        }
+        return !SUPPORTED_TYPES.containsKey(contentType.getType() + "/" + contentType.getSubtype());
+    }
+
+    private static Mono<byte[]> readBytes(ClientResponse response) {
+        return DataBufferUtils.join(response.bodyToFlux(DataBuffer.class), MAX_CONVERT_BYTES)
+                .map(buffer -> {
+                    byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    DataBufferUtils.release(buffer);
+                    return bytes;
+                });
+    }
+
+    private static Mono<byte[]> convertToPng(byte[] bytes) {
+        return Mono.fromCallable(() -> {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+            if (image == null) {
+                throw new IOException("无法读取远程图像，文件可能非有效图像格式");
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", out);
+            return out.toByteArray();
+        }).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private static MediaType mediaType(MediaType contentType) {
+        return contentType != null ? contentType : MediaType.APPLICATION_OCTET_STREAM;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sha256(byte[] bytes) {
+        return hex(newDigest().digest(bytes));
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String extension(String imageUrl, MediaType contentType) {
+        if (contentType != null) {
+            String ext = SUPPORTED_TYPES.get(contentType.getType() + "/" + contentType.getSubtype());
+            if (ext != null) {
+                return ext;
+            }
+        }
+        String path = URI.create(imageUrl).getPath();
+        int dot = path == null ? -1 : path.lastIndexOf('.');
+        if (dot >= 0 && dot > path.lastIndexOf('/')) {
+            String suffix = path.substring(dot + 1).toLowerCase();
+            if (SUPPORTED_TYPES.containsValue(suffix) || "jpeg".equals(suffix)) {
+                return suffix;
+            }
+        }
+        return "png";
+    }
+}
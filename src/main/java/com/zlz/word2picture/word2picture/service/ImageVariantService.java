@@ -0,0 +1,324 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.zlz.word2picture.word2picture.config.HttpClientFactory;
+import com.zlz.word2picture.word2picture.util.MinioUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * 生成结果的缩略图/格式变体
+ * 在独立的有界线程池上解码、缩放、编码，结果写入按总大小限制的磁盘LRU缓存并同步到MinIO；
+ * 再次访问时直接内存映射磁盘文件返回，磁盘已淘汰时从MinIO取回，不会重新解码原图
+ */
+@Slf4j
+@Service
+public class ImageVariantService {
+
+    // 源图片读入内存的上限
+    private static final int MAX_SOURCE_BYTES = 64 * 1024 * 1024;
+    private static final int MIN_WIDTH = 16;
+    private static final int MAX_WIDTH = 4096;
+    private static final float JPEG_QUALITY = 0.85f;
+    // 任务ID用作文件名，只允许UUID字符
+    private static final Pattern TASK_ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+
+    @Autowired
+    private HttpClientFactory httpClientFactory;
+    @Autowired
+    private ComfyUIService comfyUIService;
+    @Autowired
+    private MinioUtil minioUtil;
+    @Autowired
+    private Scheduler blockingIoScheduler;
+
+    @Value("${image-variant.cache-dir:${java.io.tmpdir}/word2picture-variants}")
+    private String cacheDir;
+    @Value("${image-variant.max-disk-bytes:1073741824}")
+    private long maxDiskBytes;
+    @Value("${image-variant.workers:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+    private int workers;
+    @Value("${image-variant.max-pending:100}")
+    private int maxPending;
+
+    // 拉取源图片的客户端
+    private WebClient sourceWebClient;
+
+    private Path directory;
+    private Scheduler scheduler;
+    // 变体文件名 -> 磁盘文件，按文件大小计权，淘汰时删除文件
+    private Cache<String, Path> diskCache;
+    // 生成中的变体，同一变体只生成一次
+    private final Map<String, Mono<Path>> pending = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() throws IOException {
+        sourceWebClient = httpClientFactory.create("image-variant", null);
+        directory = Files.createDirectories(Paths.get(cacheDir));
+        scheduler = Schedulers.newBoundedElastic(workers, maxPending, "image-variant");
+        diskCache = Caffeine.newBuilder()
+                .maximumWeight(maxDiskBytes)
+                .weigher((String name, Path file) -> (int) Math.min(Integer.MAX_VALUE, file.toFile().length()))
+                .evictionListener((String name, Path file, RemovalCause cause) -> delete(file))
+                .recordStats()
+                .build();
+        // 重启后沿用磁盘上已有的变体，按修改时间由旧到新载入
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(Files::isRegularFile)
+                    .filter(file -> !file.getFileName().toString().endsWith(".tmp"))
+                    .sorted(Comparator.comparingLong(file -> file.toFile().lastModified()))
+                    .forEach(file -> diskCache.put(file.getFileName().toString(), file));
+        }
+        log.info("图片变体缓存目录: {}, 已有{}个文件", directory, diskCache.estimatedSize());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.dispose();
+    }
+
+    /**
+     * 获取变体文件，依次查找磁盘缓存、MinIO，都没有时生成
+     *
+     * @param width  目标宽度，为空时保持原图宽度；不放大
+     * @param format jpeg/png/webp
+     */
+    public Mono<Path> variant(String taskId, Integer width, String format) {
+        return Mono.defer(() -> {
+            String extension = normalizeFormat(format);
+            if (!TASK_ID.matcher(taskId).matches()) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "任务ID不合法");
+            }
+            if (width != null && (width < MIN_WIDTH || width > MAX_WIDTH)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "宽度需在" + MIN_WIDTH + "到" + MAX_WIDTH + "之间");
+            }
+            String name = taskId + "_" + (width == null ? "orig" : width) + "." + extension;
+            Path cached = diskCache.getIfPresent(name);
+            if (cached != null && Files.exists(cached)) {
+                return Mono.just(cached);
+            }
+            return pending.computeIfAbsent(name, key -> fromMinio(key)
+                    .switchIfEmpty(Mono.defer(() -> generate(taskId, key, width, extension)))
+                    .doOnNext(file -> diskCache.put(key, file))
+                    .doFinally(signal -> pending.remove(key))
+                    .cache());
+        });
+    }
+
+    public CacheStats diskCacheStats() {
+        return diskCache.stats();
+    }
+
+    /**
+     * 磁盘缓存当前占用的字节数
+     */
+    public long diskCacheBytes() {
+        return diskCache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L);
+    }
+
+    public static String contentType(Path file) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(".png")) {
+            return "image/png";
+        }
+        if (name.endsWith(".webp")) {
+            return "image/webp";
+        }
+        return "image/jpeg";
+    }
+
+    /**
+     * 以内存映射方式读取文件写出，不经过堆内存
+     */
+    public static void transfer(Path file, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Channels.newChannel(out).write(buffer);
+        }
+    }
+
+    private static String minioObject(String name) {
+        return "variants/" + name;
+    }
+
+    private Mono<Path> fromMinio(String name) {
+        return Mono.fromCallable(() -> {
+            String object = minioObject(name);
+            if (!minioUtil.exists(object)) {
+                return null;
+            }
+            Path file = directory.resolve(name);
+            Path tmp = directory.resolve(name + ".tmp");
+            minioUtil.download(object, tmp);
+            return Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }).subscribeOn(blockingIoScheduler)
+                .onErrorResume(e -> {
+                    log.warn("从MinIO取回图片变体失败: {}, {}", name, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Path> generate(String taskId, String name, Integer width, String extension) {
+        return comfyUIService.getImagePreviewUrl(taskId)
+                .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "任务结果不存在")))
+                .flatMap(url -> DataBufferUtils.join(sourceWebClient.get().uri(URI.create(url))
+                        .retrieve()
+                        .bodyToFlux(DataBuffer.class), MAX_SOURCE_BYTES))
+                .publishOn(scheduler)
+                .map(buffer -> {
+                    byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    DataBufferUtils.release(buffer);
+                    long start = System.currentTimeMillis();
+                    Path file = render(bytes, name, width, extension);
+                    log.info("生成图片变体: {}, 耗时: {}ms", name, System.currentTimeMillis() - start);
+                    return file;
+                })
+                .onErrorMap(RejectedExecutionException.class,
+                        e -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "图片处理繁忙，请稍后重试"))
+                .doOnNext(file -> mirror(name, file));
+    }
+
+    private Path render(byte[] source, String name, Integer width, String extension) {
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(source));
+            if (image == null) {
+                throw new IOException("无法解码结果图片");
+            }
+            if (width != null && width < image.getWidth()) {
+                image = scale(image, width);
+            }
+            Path tmp = directory.resolve(name + ".tmp");
+            write(image, extension, tmp);
+            return Files.move(tmp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("生成图片变体失败: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 逐级减半缩放到目标宽度，避免一次大比例缩放的锯齿
+     */
+    private static BufferedImage scale(BufferedImage image, int targetWidth) {
+        int targetHeight = Math.max(1, (int) Math.round((double) image.getHeight() * targetWidth / image.getWidth()));
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = Math.max(targetWidth, w / 2);
+            h = Math.max(targetHeight, h / 2);
+            BufferedImage next = new BufferedImage(w, h, type);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = next;
+        } while (w != targetWidth || h != targetHeight);
+        return current;
+    }
+
+    private static void write(BufferedImage image, String extension, Path file) throws IOException {
+        if ("jpg".equals(extension) && image.getColorModel().hasAlpha()) {
+            // JPEG不支持透明通道，铺白底
+            BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            image = rgb;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpg".equals(extension) ? "jpeg" : extension);
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpg".equals(extension)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private void mirror(String name, Path file) {
+        Mono.fromCallable(() -> {
+                    try (InputStream in = Files.newInputStream(file)) {
+                        return minioUtil.uploadToMinio(in, Files.size(file), minioObject(name), contentType(file));
+                    }
+                })
+                .subscribeOn(blockingIoScheduler)
+                .subscribe(object -> log.debug("图片变体已同步MinIO: {}", object),
+                        e -> log.warn("图片变体同步MinIO失败: {}, {}", name, e.getMessage()));
+    }
+
+    private static String normalizeFormat(String format) {
+        String value = format == null ? "jpeg" : format.trim().toLowerCase();
+        switch (value) {
+            case "jpg":
+            case "jpeg":
+                return "jpg";
+            case "png":
+                return "png";
+            case "webp":
+                if (!ImageIO.getImageWritersByFormatName("webp").hasNext()) {
+                    throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "当前环境不支持WebP编码");
+                }
+                return "webp";
+            default:
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "不支持的格式: " + format);
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("删除图片变体缓存失败: {}, {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.zlz.word2picture.word2picture.model.ComfyUIEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 工作流节点耗时分析和剩余时间估算
+ * 按websocket的executing事件记录每个任务的节点切换时间，节点耗时按模板、节点class_type和后端写入word2picture.node.duration；
+ * 同时按模板+后端为每个节点维护指数滑动平均，未执行(命中ComfyUI缓存)的节点计为0，用于估算排队和执行中任务的剩余时间
+ */
+@Component
+public class NodeTimingProfiler {
+
+    private static final String NODE_DURATION = "word2picture.node.duration";
+    // 滑动平均的权重，越大越快跟上GPU负载和模型缓存的变化
+    private static final double ALPHA = 0.2;
+
+    @Autowired
+    private MeterRegistry registry;
+    @Autowired
+    private WorkflowTemplateRegistry workflowTemplateRegistry;
+
+    // taskId -> 提交到后端后的执行轨迹，任务结束时移除
+    private final Cache<String, Trace> traces = Caffeine.newBuilder()
+            .expireAfterWrite(Duration.ofHours(2))
+            .maximumSize(100_000)
+            .build();
+    // 模板 + 后端 -> 各节点的预计耗时
+    private final Map<String, Estimate> estimates = new ConcurrentHashMap<>();
+
+    /**
+     * 任务提交到后端，开始记录执行轨迹
+     */
+    public void onSubmitted(String taskId, String template, String backend) {
+        traces.put(taskId, new Trace(template, backend, System.nanoTime()));
+    }
+
+    /**
+     * 任务结束(含提交失败、超时)，不再计入后端的剩余工作量
+     */
+    public void onFinished(String taskId) {
+        traces.invalidate(taskId);
+    }
+
+    /**
+     * 处理任务的websocket事件：executing切换节点，progress更新当前节点的进度，executing(node为空)表示执行完毕
+     */
+    public void onEvent(String taskId, ComfyUIEvent event) {
+        Trace trace = traces.getIfPresent(taskId);
+        if (trace == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (event instanceof ComfyUIEvent.ExecutionStart) {
+            trace.start(now);
+        } else if (event instanceof ComfyUIEvent.Progress progress) {
+            trace.progress(progress.value(), progress.max());
+        } else if (event instanceof ComfyUIEvent.Executing executing) {
+            record(trace, trace.enter(executing.node(), now));
+            if (executing.node() == null) {
+                traces.invalidate(taskId);
+                estimate(trace.template, trace.backend).update(trace.executedNodes());
+            }
+        } else if (event instanceof ComfyUIEvent.ExecutionError) {
+            traces.invalidate(taskId);
+        }
+    }
+
+    /**
+     * 已提交任务的预计剩余毫秒数：执行中的任务按未执行节点的平均耗时和当前节点进度估算，
+     * 在ComfyUI中排队的任务再加上同一后端先提交任务的剩余时间；没有历史数据时返回-1
+     */
+    public long remainingMillis(String taskId) {
+        Trace trace = traces.getIfPresent(taskId);
+        if (trace == null) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        long remaining = trace.remaining(now);
+        if (remaining < 0 || trace.isStarted()) {
+            return remaining;
+        }
+        for (Trace other : traces.asMap().values()) {
+            if (other != trace && other.backend.equals(trace.backend) && other.submittedAt < trace.submittedAt) {
+                remaining += Math.max(0, other.remaining(now));
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * 全部已提交任务的剩余时间之和，用于估算调度队列中任务的等待时间
+     */
+    public long backlogMillis() {
+        long now = System.nanoTime();
+        long backlog = 0;
+        for (Trace trace : traces.asMap().values()) {
+            backlog += Math.max(0, trace.remaining(now));
+        }
+        return backlog;
+    }
+
+    /**
+     * 模板的预计执行毫秒数，backend为空时取各后端的平均值；没有历史数据时返回-1
+     */
+    public long expectedMillis(String template, String backend) {
+        if (backend != null) {
+            Estimate estimate = estimates.get(key(template, backend));
+            return estimate != null ? estimate.total() : -1;
+        }
+        long sum = 0;
+        int count = 0;
+        for (Estimate estimate : estimates.values()) {
+            if (estimate.template.equals(template)) {
+                sum += estimate.total();
+                count++;
+            }
+        }
+        return count > 0 ? sum / count : -1;
+    }
+
+    /**
+     * 按模板、后端列出各类节点的耗时分布，按累计耗时从高到低排序
+     */
+    public Map<String, Map<String, Map<String, Object>>> breakdown() {
+        Map<String, Map<String, Map<String, Object>>> result = new TreeMap<>();
+        for (Timer timer : registry.find(NODE_DURATION).timers()) {
+            String template = timer.getId().getTag("template");
+            String backend = timer.getId().getTag("backend");
+            Map<String, Object> group = result.computeIfAbsent(template, t -> new TreeMap<>())
+                    .computeIfAbsent(backend, b -> {
+                        Map<String, Object> item = new LinkedHashMap<>();
+                        item.put("expectedMillis", expectedMillis(template, backend));
+                        item.put("nodes", new ArrayList<Map<String, Object>>());
+                        return item;
+                    });
+            HistogramSnapshot snapshot = timer.takeSnapshot();
+            Map<String, Object> node = new LinkedHashMap<>();
+            node.put("node", timer.getId().getTag("node"));
+            node.put("count", snapshot.count());
+            node.put("totalMillis", Math.round(snapshot.total(TimeUnit.MILLISECONDS)));
+            node.put("meanMillis", Math.round(snapshot.mean(TimeUnit.MILLISECONDS)));
+            for (ValueAtPercentile percentile : snapshot.percentileValues()) {
+                node.put("p" + Math.round(percentile.percentile() * 100), Math.round(percentile.value(TimeUnit.MILLISECONDS)));
+            }
+            node.put("maxMillis", Math.round(snapshot.max(TimeUnit.MILLISECONDS)));
+            nodes(group).add(node);
+        }
+        result.values().forEach(backends -> backends.values().forEach(group -> {
+            List<Map<String, Object>> nodes = nodes(group);
+            nodes.sort(Comparator.comparingLong((Map<String, Object> node) -> (Long) node.get("totalMillis")).reversed());
+            long total = nodes.stream().mapToLong(node -> (Long) node.get("totalMillis")).sum();
+            nodes.forEach(node -> node.put("share", total > 0 ? Math.round((Long) node.get("totalMillis") * 1000.0 / total) / 1000.0 : 0));
+        }));
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> nodes(Map<String, Object> group) {
+        return (List<Map<String, Object>>) group.get("nodes");
+    }
+
+    private void record(Trace trace, NodeTiming timing) {
+        if (timing == null) {
+            return;
+        }
+        Timer.builder(NODE_DURATION)
+                .tag("template", trace.template)
+                .tag("node", classType(trace.template, timing.node))
+                .tag("backend", trace.backend)
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .register(registry)
+                .record(timing.nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private String classType(String template, String nodeId) {
+        try {
+            Object node = workflowTemplateRegistry.get(template).getNodes().get(nodeId);
+            Object classType = node instanceof Map ? ((Map<String, Object>) node).get("class_type") : null;
+            return classType != null ? classType.toString() : "unknown";
+        } catch (RuntimeException e) {
+            return "unknown";
+        }
+    }
+
+    private Estimate estimate(String template, String backend) {
+        return estimates.computeIfAbsent(key(template, backend), key -> new Estimate(template));
+    }
+
+    private static String key(String template, String backend) {
+        return template + "|" + backend;
+    }
+
+    private record NodeTiming(String node, long nanos) {
+    }
+
+    /**
+     * 单个任务的执行轨迹，事件在后端websocket线程上依次到达，估算在其他线程读取
+     */
+    private final class Trace {
+        private final String template;
+        private final String backend;
+        private final long submittedAt;
+        // 已执行完的节点 -> 耗时(纳秒)
+        private final Map<String, Long> executed = new LinkedHashMap<>();
+        private long startedAt;
+        private String node;
+        private long nodeStartedAt;
+        private int value;
+        private int max;
+
+        private Trace(String template, String backend, long submittedAt) {
+            this.template = template;
+            this.backend = backend;
+            this.submittedAt = submittedAt;
+        }
+
+        synchronized void start(long now) {
+            startedAt = now;
+        }
+
+        synchronized boolean isStarted() {
+            return startedAt != 0;
+        }
+
+        synchronized void progress(int value, int max) {
+            this.value = value;
+            this.max = max;
+        }
+
+        /**
+         * 切换到下一个节点，返回刚结束的节点耗时
+         */
+        synchronized NodeTiming enter(String next, long now) {
+            if (startedAt == 0) {
+                startedAt = now;
+            }
+            NodeTiming finished = null;
+            if (node != null) {
+                long nanos = now - nodeStartedAt;
+                executed.merge(node, nanos, Long::sum);
+                finished = new NodeTiming(node, nanos);
+            }
+            node = next;
+            nodeStartedAt = now;
+            value = 0;
+            max = 0;
+            return finished;
+        }
+
+        synchronized Map<String, Long> executedNodes() {
+            return new HashMap<>(executed);
+        }
+
+        /**
+         * 本任务的剩余毫秒数，不含排在前面的任务；当前节点有采样进度时按本任务的实际速度推算
+         */
+        synchronized long remaining(long now) {
+            Estimate estimate = estimates.get(key(template, backend));
+            Map<String, Double> averages = estimate != null ? estimate.averages() : null;
+            if (averages == null) {
+                // 该后端还没有数据时参考其他后端
+                long expected = expectedMillis(template, null);
+                if (expected < 0) {
+                    return -1;
+                }
+                return startedAt == 0 ? expected : Math.max(0, expected - TimeUnit.NANOSECONDS.toMillis(now - startedAt));
+            }
+            double remaining = 0;
+            for (Map.Entry<String, Double> entry : averages.entrySet()) {
+                if (!executed.containsKey(entry.getKey()) && !entry.getKey().equals(node)) {
+                    remaining += entry.getValue();
+                }
+            }
+            if (node != null) {
+                double elapsed = TimeUnit.NANOSECONDS.toMillis(now - nodeStartedAt);
+                if (value > 0 && max > value) {
+                    remaining += elapsed / value * (max - value);
+                } else {
+                    remaining += Math.max(0, averages.getOrDefault(node, 0.0) - elapsed);
+                }
+            }
+            return Math.round(remaining);
+        }
+    }
+
+    /**
+     * 模板在某个后端上各节点的平均耗时(毫秒)
+     */
+    private static final class Estimate {
+        private final String template;
+        private final Map<String, Double> averages = new HashMap<>();
+
+        private Estimate(String template) {
+            this.template = template;
+        }
+
+        /**
+         * 一次成功执行后更新，已知但本次未执行的节点按0计入
+         */
+        synchronized void update(Map<String, Long> executed) {
+            executed.keySet().forEach(node -> averages.putIfAbsent(node, null));
+            averages.replaceAll((node, average) -> {
+                double millis = TimeUnit.NANOSECONDS.toMillis(executed.getOrDefault(node, 0L));
+                return average == null ? millis : average + ALPHA * (millis - average);
+            });
+        }
+
+        synchronized Map<String, Double> averages() {
+            return averages.isEmpty() ? null : new HashMap<>(averages);
+        }
+
+        synchronized long total() {
+            return Math.round(averages.values().stream().mapToDouble(Double::doubleValue).sum());
+        }
+    }
+}
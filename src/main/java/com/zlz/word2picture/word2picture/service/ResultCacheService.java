@@ -0,0 +1,129 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.zlz.word2picture.word2picture.model.GenerateImageRequest;
+import com.zlz.word2picture.word2picture.model.TaskResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 生成结果缓存
+ * 以参数替换后的完整工作流图的规范化JSON(键排序)的SHA-256为key：
+ * 已完成的相同请求直接返回已有结果，不再提交ComfyUI；执行中的相同请求合并到同一个任务。
+ * 随机种子的请求结果不确定，不参与缓存
+ */
+@Slf4j
+@Service
+public class ResultCacheService {
+
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private TaskStateStore taskStateStore;
+
+    @Value("${comfyui.result-cache.max-size:10000}")
+    private long maxSize;
+    @Value("${comfyui.result-cache.expire-after-write:86400000}")
+    private long expireAfterWrite;
+
+    // 键排序的序列化，保证同一个图总是得到相同的字节
+    private ObjectMapper canonicalMapper;
+    // 工作流哈希 -> 已完成任务的结果
+    private Cache<String, TaskResponse> results;
+    // 工作流哈希 -> 执行中的任务ID
+    private final Map<String, String> inFlight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        canonicalMapper = objectMapper.copy().configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true);
+        results = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofMillis(expireAfterWrite))
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 计算请求对应的缓存key，未指定种子（随机）时返回null
+     * 图生图在导入图片前计算，LoadImage的图片名以源图片URL代替
+     */
+    public String key(CompiledWorkflow template, GenerateImageRequest request) {
+        if (request.getSeed() == null || request.getSeed() < 0) {
+            return null;
+        }
+        GenerateImageRequest keyed = request;
+        if (request.getImageUrl() != null) {
+            keyed = objectMapper.convertValue(request, GenerateImageRequest.class);
+            keyed.setImageName(request.getImageUrl());
+        }
+        try {
+            byte[] graph = canonicalMapper.writeValueAsBytes(template.instantiate(keyed));
+            return hex(MessageDigest.getInstance("SHA-256").digest(graph));
+        } catch (Exception e) {
+            log.warn("计算工作流哈希失败，不使用结果缓存: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 已完成的相同请求的结果
+     */
+    public TaskResponse getCompleted(String key) {
+        return key == null ? null : results.getIfPresent(key);
+    }
+
+    /**
+     * 执行中的相同请求的任务ID
+     */
+    public String getInFlight(String key) {
+        return key == null ? null : inFlight.get(key);
+    }
+
+    public void markInFlight(String key, String taskId) {
+        if (key != null) {
+            inFlight.put(key, taskId);
+        }
+    }
+
+    /**
+     * 任务结束：成功且有输出时记录结果，之后的相同请求直接命中
+     */
+    public void onFinished(String key, String taskId) {
+        if (key == null) {
+            return;
+        }
+        TaskResponse task = taskStateStore.get(taskId);
+        if (task != null && "COMPLETED".equals(task.getStatus()) && task.getImageUrl() != null) {
+            TaskResponse result = new TaskResponse();
+            result.setBackend(task.getBackend());
+            result.setImageUrl(task.getImageUrl());
+            results.put(key, result);
+        }
+        // 先记录结果再移除执行中标记，期间到达的相同请求不会重复执行
+        inFlight.remove(key, taskId);
+    }
+
+    public CacheStats stats() {
+        return results.stats();
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.zlz.word2picture.word2picture.model.TaskResponse;
+import com.zlz.word2picture.word2picture.util.MinioUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 生成结果持久化
+ * 任务完成后将输出图片从ComfyUI /view以流的方式转存到MinIO，之后客户端只拿到MinIO地址，
+ * 图片下载不再经过ComfyUI，ComfyUI清理output目录后结果仍可访问
+ */
+@Slf4j
+@Service
+public class ResultStorageService {
+
+    private static final String VIEW_PATH = "/view";
+
+    @Autowired
+    private ComfyUIBackendPool comfyUIBackendPool;
+    @Autowired
+    private TaskStateStore taskStateStore;
+    @Autowired
+    private MinioUtil minioUtil;
+    @Autowired
+    private GenerationMetrics generationMetrics;
+
+    // 进行中的转存，同一任务只转存一次
+    private final Map<String, Mono<TaskResponse>> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * 转存任务输出图片，已转存或没有输出时直接返回任务；转存失败时保留ComfyUI地址
+     */
+    public Mono<TaskResponse> persist(String taskId) {
+        TaskResponse task = taskStateStore.get(taskId);
+        if (task == null || !isComfyUIOutput(task)) {
+            return Mono.justOrEmpty(task);
+        }
+        return uploads.computeIfAbsent(taskId, id -> upload(task)
+                .doFinally(signal -> uploads.remove(id))
+                .cache());
+    }
+
+    /**
+     * 输出图片仍在ComfyUI上（imageUrl为/view相对路径）
+     */
+    public static boolean isComfyUIOutput(TaskResponse task) {
+        return task.getImageUrl() != null && task.getImageUrl().startsWith(VIEW_PATH);
+    }
+
+    private Mono<TaskResponse> upload(TaskResponse task) {
+        ComfyUIBackend backend = comfyUIBackendPool.get(task.getBackend());
+        if (backend == null) {
+            return Mono.just(task);
+        }
+        String viewPath = task.getImageUrl();
+        String filename = UriComponentsBuilder.fromUriString(viewPath).build().getQueryParams().getFirst("filename");
+        String objectName = "results/" + task.getTaskId() + "/" + filename;
+        long start = System.currentTimeMillis();
+        Mono<String> transfer = backend.getWebClient().get()
+                .uri(viewPath)
+                .exchangeToMono(response -> {
+                    if (!response.statusCode().is2xxSuccessful()) {
+                        return response.createException().flatMap(Mono::error);
+                    }
+                    String contentType = response.headers().contentType()
+                            .map(MediaType::toString)
+                            .orElse(MediaType.IMAGE_PNG_VALUE);
+                    long length = response.headers().contentLength().orElse(-1L);
+                    return minioUtil.uploadToMinio(response.bodyToFlux(DataBuffer.class), length, objectName, contentType);
+                });
+        return generationMetrics.time(transfer, "word2picture.result.persist", "backend", backend.getName())
+                .map(name -> {
+                    task.setImageUrl(minioUtil.getFileUrl(name));
+                    taskStateStore.onPersisted(task.getTaskId(), task.getImageUrl());
+                    log.info("结果已转存MinIO: {} -> {}, 耗时: {}ms", task.getTaskId(), name, System.currentTimeMillis() - start);
+                    return task;
+                })
+                .onErrorResume(e -> {
+                    log.warn("结果转存MinIO失败，继续使用ComfyUI地址: {}, {}", task.getTaskId(), e.getMessage());
+                    return Mono.just(task);
+                });
+    }
+}
@@ -0,0 +1,201 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zlz.word2picture.word2picture.model.TaskRecord;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * 任务日志：任务登记和每次状态变化以一行JSON追加到本地文件，服务重启后据此恢复任务
+ * 追加只是入队，由单独的写线程批量写入，每批只fsync一次，fsync期间到达的记录合并到下一批；
+ * 文件超过compact-threshold时按当前登记表重写
+ */
+@Slf4j
+@Service
+public class TaskJournal {
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${task-journal.enabled:true}")
+    private boolean enabled;
+    @Value("${task-journal.path:./data/task-journal.log}")
+    private String path;
+    @Value("${task-journal.compact-threshold:67108864}")
+    private long compactThreshold;
+
+    private final BlockingQueue<Entry> pending = new LinkedBlockingQueue<>();
+    private volatile boolean running;
+    private Thread writer;
+    private FileChannel channel;
+    private long size;
+    // 重写日志时使用的当前任务快照
+    private Supplier<Collection<TaskRecord>> snapshot;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 读取日志中每个任务的最后状态，并按这些状态重写日志后开始接受追加
+     *
+     * @param retain 过滤需要恢复的任务
+     * @param live   之后重写日志时使用的当前任务快照
+     */
+    public synchronized List<TaskRecord> open(Predicate<Entry> retain, Supplier<Collection<TaskRecord>> live) throws IOException {
+        if (!enabled || running) {
+            return Collections.emptyList();
+        }
+        Path file = Paths.get(path).toAbsolutePath();
+        Files.createDirectories(file.getParent());
+        Map<String, Entry> latest = new LinkedHashMap<>();
+        int corrupted = 0;
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        Entry entry = objectMapper.readValue(line, Entry.class);
+                        latest.put(entry.task().taskId(), entry);
+                    } catch (IOException e) {
+                        // 进程异常退出时最后一行可能只写了一半
+                        corrupted++;
+                    }
+                }
+            }
+        }
+        List<Entry> retained = latest.values().stream().filter(retain).collect(Collectors.toList());
+        log.info("任务日志已加载: {}, 任务数: {}, 恢复: {}, 损坏的记录: {}", file, latest.size(), retained.size(), corrupted);
+
+        snapshot = live;
+        rewrite(file, retained);
+        running = true;
+        writer = new Thread(this::drain, "task-journal");
+        writer.setDaemon(true);
+        writer.start();
+        return retained.stream().map(Entry::task).collect(Collectors.toList());
+    }
+
+    /**
+     * 记录任务的最新状态，立即返回
+     */
+    public void append(TaskRecord task) {
+        if (running) {
+            pending.offer(new Entry(System.currentTimeMillis(), task));
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("关闭任务日志失败: {}", e.getMessage());
+        }
+    }
+
+    private void drain() {
+        List<Entry> batch = new ArrayList<>();
+        while (running || !pending.isEmpty()) {
+            try {
+                Entry first = pending.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch);
+                write(batch);
+                if (size > compactThreshold) {
+                    long now = System.currentTimeMillis();
+                    rewrite(Paths.get(path).toAbsolutePath(), snapshot.get().stream()
+                            .map(task -> new Entry(now, task))
+                            .collect(Collectors.toList()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // 写入失败不影响任务执行，只是重启后无法恢复这些记录
+                log.error("写入任务日志失败, 丢弃{}条记录", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<Entry> batch) throws IOException {
+        size += write(channel, batch);
+    }
+
+    private long write(FileChannel target, List<Entry> batch) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(batch.size() * 256);
+        for (Entry entry : batch) {
+            buffer.write(objectMapper.writeValueAsBytes(entry));
+            buffer.write('\n');
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+        long written = 0;
+        while (bytes.hasRemaining()) {
+            written += target.write(bytes);
+        }
+        target.force(false);
+        return written;
+    }
+
+    /**
+     * 写入临时文件后原子替换，替换前进程退出时原日志仍完整
+     */
+    private void rewrite(Path file, List<Entry> entries) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        long written;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            written = write(out, entries);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = written;
+        log.info("任务日志已重写, 任务数: {}, 大小: {}字节", entries.size(), size);
+    }
+
+    /**
+     * 日志中的一行
+     *
+     * @param at 记录时间
+     */
+    public record Entry(long at, TaskRecord task) {
+    }
+}
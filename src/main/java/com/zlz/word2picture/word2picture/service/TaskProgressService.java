@@ -1,164 +1,402 @@
 package com.zlz.word2picture.word2picture.service;
 // TaskProgressService.java
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.zlz.word2picture.word2picture.config.ComfyUIProperties;
+import com.zlz.word2picture.word2picture.model.ComfyUIEvent;
 import com.zlz.word2picture.word2picture.model.TaskProgress;
+import com.zlz.word2picture.word2picture.model.TaskResponse;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.socket.WebSocketMessage;
-import org.springframework.web.reactive.socket.client.ReactorNettyWebSocketClient;
-import org.springframework.web.reactive.socket.client.WebSocketClient;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
-import reactor.core.publisher.EmitterProcessor;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
-import jakarta.annotation.PreDestroy;
-import java.io.IOException;
-import java.net.URI;
-import java.util.Map;
-import java.util.concurrent.*;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 @Service
 public class TaskProgressService {
 
-    private final WebSocketClient webSocketClient = new ReactorNettyWebSocketClient();
+    private static final long EMITTER_TIMEOUT = 10 * 60_000L; // 10分钟
+    private static final Duration HEARTBEAT_INTERVAL = Duration.ofSeconds(15);
+    // 任务结束后进度通道的保留时间，晚到的订阅仍能收到最终状态
+    private static final Duration FINISHED_RETENTION = Duration.ofMinutes(5);
 
-    private final Map<String, String> clientTaskMap = new ConcurrentHashMap<>();
+    // taskId -> 共享websocket上的事件订阅，收不到结束事件的订阅超过comfyui.task-registry.active-ttl后清理
+    private Cache<String, Disposable> subscriptions;
 
-    // 存储每个 taskId 对应的 SseEmitter
-    private final Map<String, SseEmitter> emitters = new ConcurrentHashMap<>();
-    @Value("${comfyui.api.ws-url}")
-    private String wsBaseUrl;
+    // taskId -> 进度通道，同一任务可有多个订阅（多个浏览器标签页）；无活动超过active-ttl后结束并清理
+    private Cache<String, ProgressChannel> channels;
+    @Autowired
+    private ComfyUIBackendPool comfyUIBackendPool;
+    @Autowired
+    private TaskStateStore taskStateStore;
+    @Autowired
+    private ResultStorageService resultStorageService;
+    @Autowired
+    private GenerationMetrics generationMetrics;
+    @Autowired
+    private NodeTimingProfiler nodeTimingProfiler;
+    @Autowired
+    private ComfyUIProperties properties;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private Scheduler blockingIoScheduler;
 
-    // 使用 Flux + Sink 实现广播
-    private final Flux<TaskProgress> progressFlux;
-    private final FluxSink<TaskProgress> progressSink;
+    // 所有SSE连接共享一个心跳定时器
+    private final Scheduler timer = Schedulers.newSingle("progress-timer", true);
+    private final Flux<Long> heartbeat = Flux.interval(HEARTBEAT_INTERVAL, timer).share();
+    private final AtomicInteger connectionCount = new AtomicInteger();
 
-    private final ScheduledExecutorService scheduledExecutorService =
-            Executors.newScheduledThreadPool(5);
-
-    public TaskProgressService() {
-        // 创建一个可广播的 Flux
-        EmitterProcessor<TaskProgress> processor = EmitterProcessor.create();
-        this.progressFlux = processor;
-        this.progressSink = processor.sink();
+    @PostConstruct
+    public void init() {
+        ComfyUIProperties.TaskRegistry registry = properties.getTaskRegistry();
+        subscriptions = Caffeine.newBuilder()
+                .maximumSize(registry.getMaxSize())
+                .expireAfterWrite(Duration.ofMillis(registry.getActiveTtl()))
+                .evictionListener((String taskId, Disposable subscription, RemovalCause cause) -> {
+                    onEvicted("subscriptions", taskId, cause);
+                    subscription.dispose();
+                })
+                .build();
+        channels = Caffeine.newBuilder()
+                .maximumSize(registry.getMaxSize())
+                .expireAfterAccess(Duration.ofMillis(registry.getActiveTtl()))
+                .evictionListener((String taskId, ProgressChannel channel, RemovalCause cause) -> {
+                    onEvicted("progress-channels", taskId, cause);
+                    channel.finish();
+                })
+                .build();
+        comfyUIBackendPool.getBackends().forEach(backend -> {
+            backend.getEventChannel().addReconnectListener(taskStateStore::resetTracking);
+            backend.getEventChannel().addOpenListener(() -> recover(backend));
+        });
     }
 
     @PreDestroy
     public void destroy() {
-        progressSink.complete();
+        channels.asMap().values().forEach(ProgressChannel::finish);
+        timer.dispose();
+    }
+
+    /**
+     * 任务进度流：订阅时先收到最新一条进度，任务结束后完成
+     */
+    public Flux<TaskProgress> progress(String taskId) {
+        return channelOrReplay(taskId).sink.asFlux();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public long getChannelCount() {
+        return channels.estimatedSize();
     }
 
     // 注册前端连接
     public SseEmitter register(String taskId) {
-        // 设置更长的超时时间，比如 10 分钟
-        SseEmitter emitter = new SseEmitter(10 * 60_000L); // 10分钟
-
-        // 可选：添加心跳，每 15 秒发一次空消息保活
-        Runnable heartbeat = () -> {
-            try {
-                emitter.send(SseEmitter.event().data("ping"));
-            } catch (Exception e) {
-                log.error("Error ping sending heartbeat: {}", e.getMessage());
-                emitter.completeWithError(e);
-            }
-        };
-        ScheduledFuture<?> timeoutCallback = scheduledExecutorService.scheduleAtFixedRate(
-                heartbeat, 0, 15, TimeUnit.SECONDS
-        );
+        ProgressChannel channel = channelOrReplay(taskId);
+        // 消费慢的连接只保留最新一条进度，不排队
+        Flux<SseEmitter.SseEventBuilder> progressEvents = channel.sink.asFlux()
+                .onBackpressureLatest()
+                .map(update -> SseEmitter.event().name("progress").data(update));
+        return stream(taskId, progressEvents, channel.done.asMono());
+    }
+
+    /**
+     * 响应式模式下的进度流，与register相同：先收到最新一条进度，慢的连接只保留最新一条
+     */
+    public Flux<ServerSentEvent<TaskProgress>> listen(String taskId) {
+        return Flux.defer(() -> {
+            ProgressChannel channel = channelOrReplay(taskId);
+            return events(channel.sink.asFlux().onBackpressureLatest(), channel.done.asMono());
+        });
+    }
 
-        // 当连接完成、超时、出错时，取消心跳
-        emitter.onCompletion(() -> timeoutCallback.cancel(true));
+    /**
+     * 响应式模式下的SSE流：事件名为progress，附带共享心跳(注释行)；事件流结束时完成
+     * 直接由Netty非阻塞写出，不占用线程，连接只持有订阅本身
+     *
+     * @param events 调用方负责背压处理（例如只保留最新一条）
+     * @param done   结束后停止心跳
+     */
+    public <T> Flux<ServerSentEvent<T>> events(Flux<T> events, Mono<Void> done) {
+        Flux<ServerSentEvent<T>> pings = heartbeat
+                .onBackpressureDrop()
+                .takeUntilOther(done)
+                .map(tick -> ServerSentEvent.<T>builder().comment("ping").build());
+        return Flux.merge(1, events.map(update -> ServerSentEvent.builder(update).event("progress").build()), pings)
+                .take(Duration.ofMillis(EMITTER_TIMEOUT))
+                .doOnSubscribe(subscription -> connectionCount.incrementAndGet())
+                .doFinally(signal -> connectionCount.decrementAndGet());
+    }
+
+    /**
+     * 将事件流写入SSE连接，并附带共享心跳；事件流结束时连接随之关闭
+     *
+     * @param events 调用方负责背压处理（例如只保留最新一条）
+     * @param done   结束后停止心跳
+     */
+    public SseEmitter stream(String key, Flux<SseEmitter.SseEventBuilder> events, Mono<Void> done) {
+        SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT);
+        // 心跳来不及发送时直接丢弃
+        Flux<SseEmitter.SseEventBuilder> pings = heartbeat
+                .onBackpressureDrop()
+                .takeUntilOther(done)
+                .map(tick -> SseEmitter.event().data("ping"));
+        // 客户端断开后首次发送即失败，此时立即取消订阅，不必等容器回调onCompletion
+        Disposable.Swap subscription = Disposables.swap();
+        // 先发送一条注释行提交响应头，客户端不必等到第一条进度或心跳才确认连接已建立
+        subscription.update(Flux.merge(1, events, pings)
+                .startWith(SseEmitter.event().comment("connected"))
+                .publishOn(blockingIoScheduler, 1)
+                .subscribe(event -> {
+                    try {
+                        emitter.send(event);
+                    } catch (Exception e) {
+                        // 客户端断开或连接已结束，属于SSE的正常情况
+                        log.debug("发送进度失败，连接已断开: {}, {}", key, e.getMessage());
+                        subscription.dispose();
+                        emitter.completeWithError(e);
+                    }
+                }, e -> {
+                    log.error("进度流异常结束: {}", key, e);
+                    emitter.completeWithError(e);
+                }, emitter::complete));
+        connectionCount.incrementAndGet();
+
+        // 当连接完成、超时、出错时，取消订阅
+        emitter.onCompletion(() -> {
+            subscription.dispose();
+            connectionCount.decrementAndGet();
+        });
         emitter.onTimeout(() -> {
-            log.error("Timeout for clientId: {}", taskId);
+            log.debug("SSE连接超时: {}", key);
             emitter.complete();
-            timeoutCallback.cancel(true);
         });
-        emitter.onError(e -> {
-            log.error("Error for clientId: {}", taskId, e);
-            emitter.completeWithError(e);
-            timeoutCallback.cancel(true);
-        });
-
-        emitters.put(taskId, emitter);
+        emitter.onError(e -> log.debug("SSE连接出错: {}, {}", key, e.getMessage()));
         return emitter;
     }
 
-    // 接收来自 ComfyUI 的进度（由 listenProgress 调用）
+    // 接收来自 ComfyUI 的进度
     public void broadcastProgress(String taskId, String status, Integer progress, String detail) {
-        TaskProgress update = new TaskProgress(taskId, status, progress, detail);
-        progressSink.next(update); // 推送
-
-        // 也推送给注册的 SseEmitter
-        SseEmitter emitter = emitters.get(taskId);
-        if (emitter != null) {
-            try {
-                System.out.println("-发送的消息："+ update);
-                emitter.send(SseEmitter.event()
-                        .name("progress")
-                        .data(update));
-            } catch (Exception e) {
-                log.error("Error sending progress update", e);
-                emitter.completeWithError(e);
-                emitters.remove(taskId);
-            }
+        broadcastProgress(new TaskProgress(taskId, status, progress, detail));
+    }
+
+    public void broadcastProgress(TaskProgress update) {
+        String taskId = update.getTaskId();
+        if (update.getEtaSeconds() == null && ("RUNNING".equals(update.getStatus()) || "PENDING".equals(update.getStatus()))) {
+            long remaining = nodeTimingProfiler.remainingMillis(taskId);
+            update.setEtaSeconds(remaining < 0 ? null : (int) Math.ceil(remaining / 1000.0));
+        }
+        log.debug("-发送的消息：{}", update);
+        ProgressChannel channel = channel(taskId);
+        channel.emit(update);
+        if ("SUCCESS".equals(update.getStatus()) || "FAILED".equals(update.getStatus())) {
+            channel.finish();
+            timer.schedule(() -> channels.asMap().remove(taskId, channel),
+                    FINISHED_RETENTION.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private ProgressChannel channel(String taskId) {
+        return channels.get(taskId, id -> new ProgressChannel());
+    }
+
+    /**
+     * 进度通道已过期的已结束任务，重建通道并补发最终状态
+     * 登记表中没有的任务不创建通道，只返回一条"任务不存在"的失败事件，随意构造的taskId不会挤占正常任务的通道
+     */
+    private ProgressChannel channelOrReplay(String taskId) {
+        ProgressChannel channel = channels.getIfPresent(taskId);
+        if (channel != null) {
+            return channel;
+        }
+        TaskResponse task = taskStateStore.get(taskId);
+        if (task == null) {
+            ProgressChannel unknown = new ProgressChannel();
+            unknown.emit(new TaskProgress(taskId, "FAILED", null, "任务不存在"));
+            unknown.finish();
+            return unknown;
         }
+        channel = channel(taskId);
+        if (TaskStateStore.isTerminal(task)) {
+            boolean success = "COMPLETED".equals(task.getStatus());
+            broadcastProgress(taskId, success ? "SUCCESS" : "FAILED", success ? 100 : null, task.getMessage());
+        }
+        return channel;
+    }
+
+    /**
+     * 订阅任务在所属后端共享websocket上的事件，直到任务结束；重复调用只保留一个订阅
+     */
+    public void track(String taskId, ComfyUIBackend backend) {
+        track(taskId, taskId, backend);
+    }
+
+    /**
+     * 按ComfyUI的prompt_id订阅事件，用于不支持指定prompt_id的旧版ComfyUI
+     */
+    public void track(String taskId, String promptId, ComfyUIBackend backend) {
+        subscriptions.get(taskId, id -> backend.getEventChannel().subscribe(promptId, event -> handleEvent(id, event)));
+        taskStateStore.markTracked(taskId);
     }
+
+    /**
+     * 前端开始监听任务进度；任务提交时已开始跟踪，这里只为服务重启等情况补充订阅
+     */
     public void startListening(String clientId, String taskId) {
-        clientTaskMap.put(clientId, taskId); // 映射 clientId -> taskId
-        String url = String.format("%s?clientId=%s",wsBaseUrl,clientId);
-        webSocketClient.execute(URI.create(url), session -> {
-            String currentTaskId = clientTaskMap.get(clientId);
-            return session.receive()
-                    .map(WebSocketMessage::getPayloadAsText)
-                    .doOnNext(message -> {
-                        try {
-                            ObjectMapper mapper = new ObjectMapper();
-                            JsonNode node = mapper.readTree(message);
-                            String type = node.get("type").asText();
-                            System.out.println("----type:"+type);
-
-                            switch (type) {
-                                case "status":
-                                    int remaining = node.get("data").get("status")
-                                            .get("exec_info").get("queue_remaining").asInt();
-                                    if (remaining == 0) {
-                                        this.broadcastProgress(currentTaskId, "RUNNING", 0, "开始生成");
-                                    }
-                                    break;
-
-                                case "progress":
-                                    int value = node.get("data").get("value").asInt();
-                                    int max = node.get("data").get("max").asInt();
-                                    int progress = (int) (((double) value / max) * 100);
-                                    this.broadcastProgress(currentTaskId, "RUNNING", progress, "生成中: " + progress + "%");
-                                    break;
-
-                                case "executing":
-                                    JsonNode data = node.get("data");
-                                    String nodeId = data.get("node").asText(null);
-                                    if (nodeId == null) {
-                                        broadcastProgress(currentTaskId, "SUCCESS", 100, "生成完成");
-                                    } else {
-                                        this.broadcastProgress(currentTaskId, "RUNNING", null, "执行节点: " + nodeId);
-                                    }
-                                    break;
-
-                                case "execution_start":
-                                    this.broadcastProgress(currentTaskId, "RUNNING", 0, "开始执行...");
-                                    break;
-                            }
-                        } catch (Exception e) {
-                            log.error("Error parsing message ", e);
-                            this.broadcastProgress(currentTaskId, "FAILED", null, "解析错误: " + e.getMessage());
-                        }
-                    })
-                    .then();
-        }).subscribe();
+        // 未知任务的进度流已返回"任务不存在"，不再查询后端
+        if (subscriptions.getIfPresent(taskId) != null || taskStateStore.get(taskId) == null) {
+            return;
+        }
+        // 本实例未跟踪的任务先确认所在后端
+        taskStateStore.lookup(taskId).subscribe(task -> {
+            ComfyUIBackend backend = comfyUIBackendPool.get(task.getBackend());
+            if (backend != null && !TaskStateStore.isTerminal(task)) {
+                track(taskId, backend);
+            }
+        });
+    }
+
+    /**
+     * 取消任务事件订阅，最后一个订阅取消时共享websocket随之关闭
+     */
+    public void untrack(String taskId) {
+        Disposable subscription = subscriptions.asMap().remove(taskId);
+        if (subscription != null) {
+            subscription.dispose();
+        }
+    }
+
+    /**
+     * 服务重启前已提交的任务：重新订阅事件，并以/history校正重启期间错过的状态变化
+     */
+    public void resume(String taskId, ComfyUIBackend backend) {
+        track(taskId, backend);
+        taskStateStore.refresh(taskId).subscribe(task -> {
+            if ("COMPLETED".equals(task.getStatus())) {
+                complete(taskId);
+            } else if ("ERROR".equals(task.getStatus())) {
+                untrack(taskId);
+                broadcastProgress(taskId, "FAILED", null, task.getMessage());
+            } else {
+                broadcastProgress(taskId, "PROCESSING".equals(task.getStatus()) ? "RUNNING" : "PENDING", null,
+                        task.getMessage());
+            }
+        });
+    }
+
+    /**
+     * websocket会话建立时，以/history补齐本后端正在跟踪、且已执行结束的任务：会话断开期间结束的任务收不到执行事件
+     */
+    private void recover(ComfyUIBackend backend) {
+        for (String taskId : subscriptions.asMap().keySet()) {
+            TaskResponse task = taskStateStore.get(taskId);
+            if (task == null || TaskStateStore.isTerminal(task) || !backend.getName().equals(task.getBackend())) {
+                continue;
+            }
+            taskStateStore.refreshIfFinished(taskId).subscribe(refreshed -> {
+                if ("COMPLETED".equals(refreshed.getStatus())) {
+                    complete(taskId);
+                } else if ("ERROR".equals(refreshed.getStatus()) && subscriptions.asMap().containsKey(taskId)) {
+                    untrack(taskId);
+                    broadcastProgress(taskId, "FAILED", null, refreshed.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * 工作流执行完毕：结果转存MinIO后再通知完成，前端取到的即为MinIO地址；
+     * 同一任务可能同时由事件和/history判定完成，只处理仍在跟踪中的一次
+     */
+    private void complete(String taskId) {
+        Disposable subscription = subscriptions.asMap().remove(taskId);
+        if (subscription == null) {
+            return;
+        }
+        subscription.dispose();
+        taskStateStore.onCompleted(taskId);
+        broadcastProgress(taskId, "RUNNING", 100, "保存结果...");
+        resultStorageService.persist(taskId)
+                .doFinally(signal -> broadcastProgress(taskId, "SUCCESS", 100, "生成完成"))
+                .subscribe();
+    }
+
+    private void handleEvent(String currentTaskId, ComfyUIEvent event) {
+        try {
+            log.debug("----event:{}", event);
+            nodeTimingProfiler.onEvent(currentTaskId, event);
+            if (event instanceof ComfyUIEvent.ExecutionStart || event instanceof ComfyUIEvent.Progress
+                    || event instanceof ComfyUIEvent.Executing) {
+                generationMetrics.onFirstProgress(currentTaskId);
+            }
+
+            if (event instanceof ComfyUIEvent.Progress progress) {
+                int percent = progress.max() > 0 ? (int) (((double) progress.value() / progress.max()) * 100) : 0;
+                this.broadcastProgress(currentTaskId, "RUNNING", percent, "生成中: " + percent + "%");
+            } else if (event instanceof ComfyUIEvent.Executing executing) {
+                if (executing.node() == null) {
+                    complete(currentTaskId);
+                } else {
+                    this.broadcastProgress(currentTaskId, "RUNNING", null, "执行节点: " + executing.node());
+                }
+            } else if (event instanceof ComfyUIEvent.Executed executed) {
+                if (executed.filename() != null) {
+                    taskStateStore.onOutput(currentTaskId, executed.filename(), executed.subfolder(), executed.type());
+                }
+            } else if (event instanceof ComfyUIEvent.ExecutionStart) {
+                taskStateStore.onExecutionStart(currentTaskId);
+                this.broadcastProgress(currentTaskId, "RUNNING", 0, "开始执行...");
+            } else if (event instanceof ComfyUIEvent.ExecutionError error) {
+                taskStateStore.onFailed(currentTaskId, error.message());
+                this.broadcastProgress(currentTaskId, "FAILED", null, "执行失败: " + error.message());
+                untrack(currentTaskId);
+            }
+        } catch (Exception e) {
+            log.error("Error handling event ", e);
+            this.broadcastProgress(currentTaskId, "FAILED", null, "处理事件错误: " + e.getMessage());
+        }
+    }
+
+    private void onEvicted(String registry, String taskId, RemovalCause cause) {
+        meterRegistry.counter("word2picture.registry.evictions",
+                "registry", registry, "cause", cause.name().toLowerCase(), "state", "active").increment();
+        log.warn("清理无活动的{}: {}, 原因: {}", registry, taskId, cause);
+    }
+
+    /**
+     * 单个任务的进度通道，只缓存最新一条进度
+     */
+    private static final class ProgressChannel {
+        private final Sinks.Many<TaskProgress> sink = Sinks.many().replay().latest();
+        private final Sinks.Empty<Void> done = Sinks.empty();
+
+        synchronized void emit(TaskProgress update) {
+            sink.tryEmitNext(update);
+        }
+
+        synchronized void finish() {
+            sink.tryEmitComplete();
+            done.tryEmitEmpty();
+        }
     }
 }
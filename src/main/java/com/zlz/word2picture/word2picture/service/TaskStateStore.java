@@ -0,0 +1,398 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.*;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.zlz.word2picture.word2picture.config.ComfyUIProperties;
+import com.zlz.word2picture.word2picture.model.TaskRecord;
+import com.zlz.word2picture.word2picture.model.TaskResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * 任务状态存储
+ * 由ComfyUI websocket事件(execution_start/executed/executing/execution_error)推动状态变化，
+ * 状态和结果查询直接从内存返回；只有登记表中有、但内存状态可能过时的任务才回退到所属后端的/history查询，且同一任务的并发查询合并为一次；
+ * 登记表和任务日志中都没有的任务直接返回NOT_FOUND，不访问ComfyUI。
+ * 任务以不可变的TaskRecord保存在有上限的登记表中(comfyui.task-registry)，已结束的任务较早过期，淘汰计入指标；
+ * 登记和状态变化同时写入任务日志(TaskJournal)，服务重启后恢复
+ */
+@Slf4j
+@Service
+public class TaskStateStore {
+
+    @Autowired
+    private ComfyUIBackendPool comfyUIBackendPool;
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private ComfyUIProperties properties;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private TaskJournal taskJournal;
+
+    private Cache<String, TaskRecord> tasks;
+    // websocket重连时递增，之前跟踪的任务需重新以/history为准
+    private final AtomicInteger trackingEpoch = new AtomicInteger();
+    // 进行中的/history查询
+    private final Map<String, Mono<TaskResponse>> historyFetches = new ConcurrentHashMap<>();
+    // 从任务日志恢复、重启前已提交到ComfyUI的任务，启动完成后重新跟踪
+    private List<String> recovered = Collections.emptyList();
+
+    @PostConstruct
+    public void init() {
+        tasks = newRegistry(properties.getTaskRegistry(), (taskId, task, cause) -> {
+            String state = task.isTerminal() ? "finished" : "active";
+            meterRegistry.counter("word2picture.registry.evictions",
+                    "registry", "tasks", "cause", cause.name().toLowerCase(), "state", state).increment();
+            if (!task.isTerminal()) {
+                log.warn("未结束的任务被移出登记表: {}, 状态: {}, 原因: {}", taskId, task.status(), cause);
+            }
+        });
+        restore();
+    }
+
+    /**
+     * 从任务日志恢复未过期的任务；排队中的任务请求参数未记录，无法继续，标记为失败
+     */
+    private void restore() {
+        ComfyUIProperties.TaskRegistry config = properties.getTaskRegistry();
+        long now = System.currentTimeMillis();
+        List<TaskRecord> restored;
+        try {
+            restored = taskJournal.open(entry -> entry.task().isTerminal()
+                            ? entry.at() + config.getFinishedTtl() > now
+                            : entry.task().timestamp() + config.getActiveTtl() > now,
+                    () -> tasks.asMap().values());
+        } catch (IOException e) {
+            log.error("打开任务日志失败，本次运行的任务重启后无法恢复", e);
+            return;
+        }
+        List<String> unfinished = new ArrayList<>();
+        for (TaskRecord task : restored) {
+            if ("QUEUED".equals(task.status())) {
+                task = task.withStatus("ERROR", "服务重启，排队中的任务已取消，请重新提交");
+                taskJournal.append(task);
+            } else if (!task.isTerminal()) {
+                unfinished.add(task.taskId());
+            }
+            tasks.put(task.taskId(), task.tracked(-1));
+        }
+        recovered = unfinished;
+        if (!unfinished.isEmpty()) {
+            log.info("从任务日志恢复{}个未结束的任务", unfinished.size());
+        }
+    }
+
+    /**
+     * 取出重启前已提交、尚未结束的任务，只返回一次
+     */
+    public synchronized List<TaskResponse> takeRecovered() {
+        List<TaskResponse> result = recovered.stream()
+                .map(this::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        recovered = Collections.emptyList();
+        return result;
+    }
+
+    /**
+     * 创建任务登记表：数量上限按W-TinyLFU淘汰，未结束的任务自登记起保留activeTtl，结束后保留finishedTtl
+     */
+    public static Cache<String, TaskRecord> newRegistry(ComfyUIProperties.TaskRegistry config,
+                                                        RemovalListener<String, TaskRecord> evictionListener) {
+        long activeTtl = TimeUnit.MILLISECONDS.toNanos(config.getActiveTtl());
+        long finishedTtl = TimeUnit.MILLISECONDS.toNanos(config.getFinishedTtl());
+        return Caffeine.newBuilder()
+                .maximumSize(config.getMaxSize())
+                .expireAfter(new Expiry<String, TaskRecord>() {
+                    @Override
+                    public long expireAfterCreate(String taskId, TaskRecord task, long currentTime) {
+                        return task.isTerminal() ? finishedTtl : activeTtl;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String taskId, TaskRecord task, long currentTime, long currentDuration) {
+                        // 执行中的状态变化不延长保留时间，进入结束状态后改为finishedTtl
+                        return task.isTerminal() ? Math.min(currentDuration, finishedTtl) : currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String taskId, TaskRecord task, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .evictionListener(evictionListener)
+                .recordStats()
+                .build();
+    }
+
+    public void register(TaskResponse task) {
+        tasks.asMap().compute(task.getTaskId(), (id, current) -> journaled(TaskRecord.of(task)));
+    }
+
+    public void remove(String taskId) {
+        tasks.invalidate(taskId);
+    }
+
+    /**
+     * 任务已订阅websocket事件，此后其内存状态即为最新状态
+     */
+    public void markTracked(String taskId) {
+        update(taskId, UnaryOperator.identity());
+    }
+
+    /**
+     * websocket重连期间可能丢失事件，之后的查询重新以/history为准
+     */
+    public void resetTracking() {
+        trackingEpoch.incrementAndGet();
+    }
+
+    public long size() {
+        return tasks.estimatedSize();
+    }
+
+    public CacheStats stats() {
+        return tasks.stats();
+    }
+
+    /**
+     * 任务当前状态的副本，修改返回值不影响登记表
+     */
+    public TaskResponse get(String taskId) {
+        TaskRecord task = tasks.getIfPresent(taskId);
+        return task == null ? null : task.toResponse();
+    }
+
+    /**
+     * 任务已提交到后端
+     */
+    public void onSubmitted(String taskId, String backend, String clientId) {
+        update(taskId, task -> task.submitted(backend, clientId));
+    }
+
+    public void onExecutionStart(String taskId) {
+        update(taskId, task -> task.isTerminal() ? task : task.withStatus("PROCESSING", "任务正在处理中"));
+    }
+
+    /**
+     * executed事件：记录输出图片，取第一张
+     */
+    public void onOutput(String taskId, String filename, String subfolder, String type) {
+        update(taskId, task -> task.imageUrl() == null && filename != null
+                ? task.withImageUrl(viewPath(filename, subfolder, type)) : task);
+    }
+
+    /**
+     * executing事件中node为空表示整个工作流执行完毕
+     */
+    public void onCompleted(String taskId) {
+        update(taskId, task -> task.isTerminal() ? task : task.withStatus("COMPLETED", "图像生成完成"));
+    }
+
+    public void onFailed(String taskId, String message) {
+        update(taskId, task -> task.withStatus("ERROR", message));
+    }
+
+    /**
+     * 输出图片已转存，之后返回转存后的地址
+     */
+    public void onPersisted(String taskId, String imageUrl) {
+        tasks.asMap().computeIfPresent(taskId, (id, task) -> journaled(task.withImageUrl(imageUrl)));
+    }
+
+    /**
+     * 查询任务状态：内存命中直接返回，状态可能过时的查询一次所属后端的/history，未知任务返回NOT_FOUND
+     */
+    public Mono<TaskResponse> lookup(String taskId) {
+        TaskRecord task = tasks.getIfPresent(taskId);
+        if (task == null) {
+            return Mono.just(notFound(taskId));
+        }
+        if (task.isTerminal() || "QUEUED".equals(task.status())
+                || task.trackedEpoch() == trackingEpoch.get()) {
+            return Mono.just(task.toResponse());
+        }
+        return refresh(taskId);
+    }
+
+    /**
+     * 忽略内存状态，以/history为准更新任务
+     */
+    public Mono<TaskResponse> refresh(String taskId) {
+        return historyFetches.computeIfAbsent(taskId, id -> fetchHistory(id)
+                .doFinally(signal -> historyFetches.remove(id))
+                .cache());
+    }
+
+    /**
+     * 只在所属后端的/history已有该任务记录(执行已结束)时以其为准更新，否则不改变内存状态
+     */
+    public Mono<TaskResponse> refreshIfFinished(String taskId) {
+        TaskRecord known = tasks.getIfPresent(taskId);
+        ComfyUIBackend backend = known == null ? null : comfyUIBackendPool.get(known.backend());
+        if (backend == null) {
+            return Mono.empty();
+        }
+        return history(backend, taskId)
+                .map(response -> applyHistory(taskId, backend, response))
+                .onErrorResume(e -> {
+                    log.warn("查询任务历史失败, taskId: {}, {}", taskId, e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    public static boolean isTerminal(TaskResponse task) {
+        return "COMPLETED".equals(task.getStatus()) || "ERROR".equals(task.getStatus());
+    }
+
+    /**
+     * 更新任务状态并标记为已跟踪，状态变化只来自websocket事件或本服务
+     */
+    private void update(String taskId, UnaryOperator<TaskRecord> change) {
+        if (taskId == null) {
+            return;
+        }
+        int epoch = trackingEpoch.get();
+        tasks.asMap().computeIfPresent(taskId, (id, task) -> {
+            TaskRecord changed = change.apply(task);
+            return (changed != task ? journaled(changed) : task).tracked(epoch);
+        });
+    }
+
+    /**
+     * 在登记表的更新函数内追加日志，同一任务的记录按状态变化的顺序写入
+     */
+    private TaskRecord journaled(TaskRecord task) {
+        taskJournal.append(task);
+        return task;
+    }
+
+    /**
+     * 只查询任务所属的后端；登记表中没有或尚未提交到后端的任务不访问ComfyUI，直接返回内存状态
+     */
+    private Mono<TaskResponse> fetchHistory(String taskId) {
+        TaskRecord known = tasks.getIfPresent(taskId);
+        ComfyUIBackend pinned = known == null ? null : comfyUIBackendPool.get(known.backend());
+        if (pinned == null) {
+            return Mono.just(known != null ? known.toResponse() : notFound(taskId));
+        }
+        return history(pinned, taskId)
+                .map(response -> applyHistory(taskId, pinned, response))
+                .switchIfEmpty(Mono.fromCallable(() -> applyHistory(taskId, pinned, null)))
+                .onErrorResume(e -> {
+                    log.error("查询任务历史失败, taskId: {}", taskId, e);
+                    TaskResponse task = get(taskId);
+                    return Mono.just(task != null ? task : notFound(taskId));
+                });
+    }
+
+    /**
+     * 后端/history中该任务的记录，没有时为空
+     */
+    private static Mono<String> history(ComfyUIBackend backend, String taskId) {
+        return backend.getWebClient().get()
+                .uri("/history/{taskId}", taskId)
+                .retrieve()
+                .bodyToMono(String.class)
+                .filter(response -> response.contains(taskId));
+    }
+
+    private TaskResponse applyHistory(String taskId, ComfyUIBackend backend, String response) {
+        JsonNode taskHistory;
+        try {
+            taskHistory = response == null ? null : objectMapper.readTree(response).get(taskId);
+        } catch (Exception e) {
+            log.error("解析任务历史失败", e);
+            TaskRecord failed = tasks.asMap().computeIfPresent(taskId,
+                    (id, task) -> journaled(task.withStatus("ERROR", "解析任务状态失败: " + e.getMessage())));
+            return failed != null ? failed.toResponse() : notFound(taskId);
+        }
+        if (taskHistory == null) {
+            TaskRecord pending = tasks.asMap().computeIfPresent(taskId,
+                    (id, task) -> journaled(task.withStatus("PENDING", "任务正在排队中")));
+            return pending != null ? pending.toResponse() : notFound(taskId);
+        }
+        JsonNode image = firstImage(taskHistory.get("outputs"));
+        JsonNode status = taskHistory.path("status");
+        // 执行失败的任务没有输出，以status.status_str判定
+        String error = "error".equals(status.path("status_str").asText(null)) ? executionError(status.get("messages")) : null;
+        // 内存中没有记录（例如服务重启或已过期）时按历史记录重建
+        TaskRecord task = tasks.asMap().compute(taskId, (id, current) -> {
+            TaskRecord base = current != null ? current
+                    : new TaskRecord(id, null, null, null, null, backend.getName(), System.currentTimeMillis(), -1);
+            if (error != null) {
+                return journaled(base.withStatus("ERROR", error));
+            }
+            if (image == null) {
+                return status.path("completed").asBoolean(false)
+                        ? journaled(base.withStatus("ERROR", "工作流执行完成但没有输出图片"))
+                        : journaled(base.withStatus("PROCESSING", "任务正在处理中"));
+            }
+            // 已记录的地址可能已转存MinIO，保留
+            String imageUrl = base.imageUrl() != null ? base.imageUrl()
+                    : viewPath(image.path("filename").asText(), image.path("subfolder").asText(null),
+                    image.path("type").asText(null));
+            return journaled(base.withImageUrl(imageUrl).withStatus("COMPLETED", "图像生成完成"));
+        });
+        return task.toResponse();
+    }
+
+    /**
+     * status.messages为[事件名, 数据]的列表，取execution_error中的异常信息
+     */
+    private static String executionError(JsonNode messages) {
+        if (messages != null) {
+            for (JsonNode message : messages) {
+                if ("execution_error".equals(message.path(0).asText())) {
+                    String exception = message.path(1).path("exception_message").asText(null);
+                    if (exception != null) {
+                        return exception;
+                    }
+                }
+            }
+        }
+        return "执行失败";
+    }
+
+    private static JsonNode firstImage(JsonNode outputs) {
+        if (outputs == null) {
+            return null;
+        }
+        for (JsonNode output : outputs) {
+            JsonNode images = output.get("images");
+            if (images != null && images.size() > 0) {
+                return images.get(0);
+            }
+        }
+        return null;
+    }
+
+    private static String viewPath(String filename, String subfolder, String type) {
+        return String.format("/view?filename=%s&subfolder=%s&type=%s",
+                filename, subfolder != null ? subfolder : "", type != null ? type : "output");
+    }
+
+    private static TaskResponse notFound(String taskId) {
+        TaskResponse notFound = new TaskResponse();
+        notFound.setTaskId(taskId);
+        notFound.setStatus("NOT_FOUND");
+        notFound.setMessage("任务不存在");
+        return notFound;
+    }
+}
@@ -0,0 +1,205 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.zlz.word2picture.word2picture.config.ComfyUIProperties;
+import com.zlz.word2picture.word2picture.model.ComfyUIEvent;
+import com.zlz.word2picture.word2picture.model.GenerateImageRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 模型预热
+ * ComfyUI重启或显存不足换出模型后，第一个请求要先加载文本编码器、UNet和VAE，耗时数秒到数十秒；
+ * 启动时、后端websocket断线重连或健康检查恢复时，以及模板在某个后端上空闲超过idle-threshold时，
+ * 以最低优先级提交低分辨率、少步数的模板变体，让模型在用户请求到来前已加载
+ */
+@Slf4j
+@Service
+public class WarmupService {
+
+    @Autowired
+    private ComfyUIProperties properties;
+    @Autowired
+    private ComfyUIBackendPool comfyUIBackendPool;
+    @Autowired
+    private WorkflowTemplateRegistry workflowTemplateRegistry;
+    @Autowired
+    private GenerationScheduler generationScheduler;
+    @Autowired
+    private ComfyUIService comfyUIService;
+    @Autowired
+    private ImageIngestService imageIngestService;
+    @Autowired
+    private GenerationMetrics generationMetrics;
+
+    // 后端名|模板 -> 最近一次预热完成的时间
+    private final Map<String, Long> lastWarmed = new ConcurrentHashMap<>();
+    // 图生图模板LoadImage使用的占位图
+    private byte[] placeholder;
+    private Disposable keepWarm;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        ComfyUIProperties.Warmup warmup = properties.getWarmup();
+        if (!warmup.isEnabled()) {
+            return;
+        }
+        placeholder = placeholder(warmup.getSize());
+        for (ComfyUIBackend backend : comfyUIBackendPool.getBackends()) {
+            backend.getEventChannel().addConnectionLostListener(() -> warmUp(backend, "websocket断线重连"));
+            warmUp(backend, "启动");
+        }
+        comfyUIBackendPool.addRecoveryListener(backend -> warmUp(backend, "后端恢复"));
+        Duration interval = Duration.ofMillis(warmup.getCheckInterval());
+        keepWarm = Flux.interval(interval, interval)
+                .onBackpressureDrop()
+                .subscribe(tick -> warmUpIdle());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (keepWarm != null) {
+            keepWarm.dispose();
+        }
+    }
+
+    /**
+     * 预热后端上的全部模板
+     */
+    public void warmUp(ComfyUIBackend backend, String reason) {
+        List<String> templates = templates();
+        log.info("预热ComfyUI[{}]({}): {}", backend.getName(), reason, templates);
+        templates.forEach(template -> submit(backend, template));
+    }
+
+    /**
+     * 重新预热空闲超过idle-threshold的模板
+     */
+    private void warmUpIdle() {
+        long now = System.currentTimeMillis();
+        for (ComfyUIBackend backend : comfyUIBackendPool.getBackends()) {
+            if (!backend.isHealthy()) {
+                continue;
+            }
+            for (String template : templates()) {
+                long lastUsed = Math.max(generationScheduler.getLastStarted(backend.getName(), template),
+                        lastWarmed.getOrDefault(key(backend, template), 0L));
+                if (now - lastUsed >= properties.getWarmup().getIdleThreshold()) {
+                    log.info("模板空闲超过{}ms，重新预热: {}, 后端: {}", properties.getWarmup().getIdleThreshold(),
+                            template, backend.getName());
+                    submit(backend, template);
+                }
+            }
+        }
+    }
+
+    private List<String> templates() {
+        List<String> configured = properties.getWarmup().getTemplates();
+        return configured.isEmpty() ? new ArrayList<>(new TreeSet<>(workflowTemplateRegistry.getTemplateNames())) : configured;
+    }
+
+    /**
+     * 交给调度器排队；开始执行前该模板已有任务在此后端执行过时跳过
+     */
+    private void submit(ComfyUIBackend backend, String template) {
+        long requestedAt = System.currentTimeMillis();
+        generationScheduler.warmUp(backend, template, () -> {
+            if (generationScheduler.getLastStarted(backend.getName(), template) >= requestedAt) {
+                log.debug("模板已有任务执行，跳过预热: {}, 后端: {}", template, backend.getName());
+                return Mono.empty();
+            }
+            long startedAt = System.currentTimeMillis();
+            return generationMetrics.time(run(backend, template), "word2picture.warmup",
+                            "template", template, "backend", backend.getName())
+                    .doOnSuccess(v -> {
+                        lastWarmed.put(key(backend, template), System.currentTimeMillis());
+                        log.info("预热完成: {}, 后端: {}, 排队: {}ms, 执行: {}ms", template, backend.getName(),
+                                startedAt - requestedAt, System.currentTimeMillis() - startedAt);
+                    });
+        });
+    }
+
+    private Mono<Void> run(ComfyUIBackend backend, String templateName) {
+        return Mono.defer(() -> {
+            CompiledWorkflow template = workflowTemplateRegistry.get(templateName);
+            GenerateImageRequest request = new GenerateImageRequest();
+            request.setPrompt("warm-up");
+            request.setWorkflowTemplate(templateName);
+            request.setWidth(properties.getWarmup().getSize());
+            request.setHeight(properties.getWarmup().getSize());
+            request.setSteps(properties.getWarmup().getSteps());
+            if (template.getBinding().getTargets(WorkflowBinding.Field.IMAGE_NAME).isEmpty()) {
+                return execute(backend, template.instantiate(request));
+            }
+            return imageIngestService.ingestPng(backend, placeholder)
+                    .flatMap(imageName -> {
+                        request.setImageName(imageName);
+                        return execute(backend, template.instantiate(request));
+                    })
+                    .onErrorResume(ImageIngestService::isMissingImage, e -> {
+                        // 占位图已不在ComfyUI上(例如input目录被清理)，重新上传一次
+                        imageIngestService.invalidate(backend, request.getImageName());
+                        return imageIngestService.ingestPng(backend, placeholder)
+                                .flatMap(imageName -> {
+                                    request.setImageName(imageName);
+                                    return execute(backend, template.instantiate(request));
+                                });
+                    });
+        });
+    }
+
+    /**
+     * 提交工作流并等待执行结束
+     */
+    private Mono<Void> execute(ComfyUIBackend backend, Map<String, Object> workflow) {
+        String promptId = UUID.randomUUID().toString();
+        Sinks.Empty<Void> done = Sinks.empty();
+        return Mono.using(
+                () -> backend.getEventChannel().subscribe(promptId, event -> {
+                    if (event instanceof ComfyUIEvent.Executing executing && executing.node() == null) {
+                        done.tryEmitEmpty();
+                    } else if (event instanceof ComfyUIEvent.ExecutionError error) {
+                        done.tryEmitError(new RuntimeException("执行失败: " + error.message()));
+                    }
+                }),
+                subscription -> comfyUIService.submitWorkflow(backend, promptId, workflow)
+                        // 不支持指定prompt_id的旧版ComfyUI收不到本任务的事件，提交成功即视为完成
+                        .flatMap(actual -> actual.equals(promptId) ? done.asMono() : Mono.empty()),
+                Disposable::dispose);
+    }
+
+    private static String key(ComfyUIBackend backend, String template) {
+        return backend.getName() + "|" + template;
+    }
+
+    private static byte[] placeholder(int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.GRAY);
+        graphics.fillRect(0, 0, size, size);
+        graphics.dispose();
+        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            ImageIO.write(image, "png", out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("生成预热占位图失败", e);
+        }
+    }
+}
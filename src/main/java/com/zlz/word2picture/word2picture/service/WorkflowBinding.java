@@ -0,0 +1,241 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.zlz.word2picture.word2picture.model.GenerateImageRequest;
+import com.zlz.word2picture.word2picture.model.WorkflowManifest;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * 请求字段到工作流节点输入的绑定计划
+ * 编译模板时解析一次：先按class_type和KSampler的连线自动推导，再用绑定清单覆盖；
+ * 每次请求只写入计划中的字段
+ */
+public final class WorkflowBinding {
+
+    /**
+     * 可绑定的请求字段
+     */
+    public enum Field {
+        PROMPT("prompt", GenerateImageRequest::getPrompt),
+        NEGATIVE_PROMPT("negativePrompt", r -> StringUtils.isBlank(r.getNegativePrompt()) ? null : r.getNegativePrompt()),
+        WIDTH("width", GenerateImageRequest::getWidth),
+        HEIGHT("height", GenerateImageRequest::getHeight),
+        STEPS("steps", GenerateImageRequest::getSteps),
+        CFG_SCALE("cfgScale", GenerateImageRequest::getCfgScale),
+        SAMPLER_NAME("samplerName", GenerateImageRequest::getSamplerName),
+        SCHEDULER("scheduler", GenerateImageRequest::getScheduler),
+        SEED("seed", r -> r.getSeed() == null || r.getSeed() < 0 ? randomSeed() : r.getSeed()),
+        IMAGE_NAME("imageName", GenerateImageRequest::getImageName);
+
+        private final String property;
+        private final Function<GenerateImageRequest, Object> getter;
+
+        Field(String property, Function<GenerateImageRequest, Object> getter) {
+            this.property = property;
+            this.getter = getter;
+        }
+
+        public String getProperty() {
+            return property;
+        }
+
+        static Field ofProperty(String property) {
+            for (Field field : values()) {
+                if (field.property.equals(property)) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("不支持绑定的字段: " + property);
+        }
+    }
+
+    private static final Set<String> SAMPLER_TYPES = Set.of("KSampler", "KSamplerAdvanced");
+    private static final Set<String> LATENT_TYPES = Set.of("EmptyLatentImage", "EmptySD3LatentImage");
+    private static final Map<String, String> TEXT_INPUTS = Map.of(
+            "CLIPTextEncode", "text",
+            "TextEncodeQwenImageEdit", "prompt");
+
+    private final String promptPrefix;
+    private final Map<Field, List<Target>> targets;
+    // 按节点分组，每个节点每次请求只复制一次
+    private final Map<String, List<Target>> targetsByNode;
+
+    private WorkflowBinding(String promptPrefix, Map<Field, List<Target>> targets) {
+        this.promptPrefix = promptPrefix;
+        this.targets = targets;
+        Map<String, List<Target>> byNode = new LinkedHashMap<>();
+        targets.values().forEach(list -> list.forEach(t -> byNode.computeIfAbsent(t.nodeId, k -> new ArrayList<>()).add(t)));
+        this.targetsByNode = Collections.unmodifiableMap(byNode);
+    }
+
+    /**
+     * 按class_type推导绑定，并用清单中声明的字段覆盖
+     */
+    @SuppressWarnings("unchecked")
+    public static WorkflowBinding resolve(Map<String, Object> nodes, WorkflowManifest manifest) {
+        Map<Field, List<Target>> targets = new EnumMap<>(Field.class);
+        for (Map.Entry<String, Object> entry : nodes.entrySet()) {
+            String nodeId = entry.getKey();
+            String classType = classType(entry.getValue());
+            Map<String, Object> inputs = inputs(entry.getValue());
+            if (classType == null || inputs == null) {
+                continue;
+            }
+            if (SAMPLER_TYPES.contains(classType)) {
+                String seedInput = inputs.containsKey("noise_seed") ? "noise_seed" : "seed";
+                add(targets, Field.SEED, nodeId, seedInput);
+                add(targets, Field.STEPS, nodeId, "steps");
+                add(targets, Field.CFG_SCALE, nodeId, "cfg");
+                add(targets, Field.SAMPLER_NAME, nodeId, "sampler_name");
+                add(targets, Field.SCHEDULER, nodeId, "scheduler");
+                bindText(nodes, inputs.get("positive"), Field.PROMPT, targets);
+                bindText(nodes, inputs.get("negative"), Field.NEGATIVE_PROMPT, targets);
+                String latentId = linkedNode(inputs.get("latent_image"));
+                if (latentId != null && LATENT_TYPES.contains(classType(nodes.get(latentId)))) {
+                    add(targets, Field.WIDTH, latentId, "width");
+                    add(targets, Field.HEIGHT, latentId, "height");
+                }
+            } else if ("LoadImage".equals(classType)) {
+                add(targets, Field.IMAGE_NAME, nodeId, "image");
+            }
+        }
+        String promptPrefix = null;
+        if (manifest != null) {
+            promptPrefix = manifest.getPromptPrefix();
+            manifest.getBindings().forEach((property, declared) -> {
+                Field field = Field.ofProperty(property);
+                List<Target> list = new ArrayList<>();
+                for (WorkflowManifest.Target target : declared) {
+                    if (inputs(nodes.get(target.getNode())) == null) {
+                        throw new IllegalArgumentException("绑定的节点不存在: " + target.getNode());
+                    }
+                    list.add(new Target(target.getNode(), target.getInput(), field));
+                }
+                targets.put(field, list);
+            });
+        }
+        targets.replaceAll((field, list) -> Collections.unmodifiableList(list));
+        return new WorkflowBinding(promptPrefix, Collections.unmodifiableMap(targets));
+    }
+
+    /**
+     * 将请求参数写入工作流，只复制被绑定的节点
+     *
+     * @param template 模板节点（只读）
+     * @param workflow 本次提交的工作流，被修改的节点会替换为副本
+     */
+    @SuppressWarnings("unchecked")
+    public void apply(Map<String, Object> template, Map<String, Object> workflow, GenerateImageRequest request) {
+        for (Map.Entry<String, List<Target>> entry : targetsByNode.entrySet()) {
+            Map<String, Object> node = null;
+            Map<String, Object> inputs = null;
+            for (Target target : entry.getValue()) {
+                Object value = valueOf(target.field, request);
+                if (value == null) {
+                    continue;
+                }
+                if (node == null) {
+                    node = new LinkedHashMap<>((Map<String, Object>) template.get(entry.getKey()));
+                    inputs = new LinkedHashMap<>((Map<String, Object>) node.get("inputs"));
+                    node.put("inputs", inputs);
+                    workflow.put(entry.getKey(), node);
+                }
+                inputs.put(target.input, value);
+            }
+        }
+    }
+
+    public List<Target> getTargets(Field field) {
+        return targets.getOrDefault(field, Collections.emptyList());
+    }
+
+    public String getPromptPrefix() {
+        return promptPrefix;
+    }
+
+    private Object valueOf(Field field, GenerateImageRequest request) {
+        Object value = field.getter.apply(request);
+        if (field == Field.PROMPT && value != null && promptPrefix != null) {
+            return promptPrefix + value;
+        }
+        return value;
+    }
+
+    private static void bindText(Map<String, Object> nodes, Object link, Field field, Map<Field, List<Target>> targets) {
+        String nodeId = linkedNode(link);
+        if (nodeId == null) {
+            return;
+        }
+        String input = TEXT_INPUTS.get(classType(nodes.get(nodeId)));
+        if (input != null) {
+            add(targets, field, nodeId, input);
+        }
+    }
+
+    private static void add(Map<Field, List<Target>> targets, Field field, String nodeId, String input) {
+        List<Target> list = targets.computeIfAbsent(field, k -> new ArrayList<>());
+        for (Target target : list) {
+            if (target.nodeId.equals(nodeId) && target.input.equals(input)) {
+                return;
+            }
+        }
+        list.add(new Target(nodeId, input, field));
+    }
+
+    /**
+     * 节点输入中的连线格式为["节点ID", 输出序号]
+     */
+    private static String linkedNode(Object link) {
+        if (link instanceof List && !((List<?>) link).isEmpty()) {
+            return String.valueOf(((List<?>) link).get(0));
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String classType(Object node) {
+        return node instanceof Map ? (String) ((Map<String, Object>) node).get("class_type") : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> inputs(Object node) {
+        if (node instanceof Map && ((Map<String, Object>) node).get("inputs") instanceof Map) {
+            return (Map<String, Object>) ((Map<String, Object>) node).get("inputs");
+        }
+        return null;
+    }
+
+    private static long randomSeed() {
+        return ThreadLocalRandom.current().nextLong(1L << 48);
+    }
+
+    /**
+     * 绑定目标：节点ID + 输入名
+     */
+    public static final class Target {
+        private final String nodeId;
+        private final String input;
+        private final Field field;
+
+        Target(String nodeId, String input, Field field) {
+            this.nodeId = nodeId;
+            this.input = input;
+            this.field = field;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public String getInput() {
+            return input;
+        }
+
+        public Field getField() {
+            return field;
+        }
+    }
+}
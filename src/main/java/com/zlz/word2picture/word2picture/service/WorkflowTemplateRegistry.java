@@ -0,0 +1,122 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zlz.word2picture.word2picture.model.WorkflowManifest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 工作流模板注册表
+ * 启动时解析resources/workflows目录下的全部模板并编译缓存，后续请求不再重复读取和解析JSON
+ */
+@Slf4j
+@Service
+public class WorkflowTemplateRegistry {
+
+    private static final String WORKFLOW_DIR = "workflows/";
+    private static final String MANIFEST_SUFFIX = ".binding.json";
+
+    @Autowired
+    private ObjectMapper objectMapper;
+    @Autowired
+    private GenerationMetrics generationMetrics;
+
+    private final Map<String, CompiledWorkflow> templates = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        try {
+            Resource[] resources = new PathMatchingResourcePatternResolver()
+                    .getResources("classpath*:" + WORKFLOW_DIR + "*.json");
+            for (Resource resource : resources) {
+                String fileName = resource.getFilename();
+                if (fileName == null || fileName.endsWith(MANIFEST_SUFFIX)) {
+                    continue;
+                }
+                templates.computeIfAbsent(fileName, name -> compile(name, resource));
+            }
+            log.info("已加载工作流模板: {}", templates.keySet());
+        } catch (IOException e) {
+            log.error("扫描工作流模板失败", e);
+        }
+    }
+
+    /**
+     * 获取编译后的模板，启动时未加载到的模板在首次使用时加载
+     */
+    public CompiledWorkflow get(String workflowFileName) {
+        if (!exists(workflowFileName)) {
+            log.error("工作流文件不存在: {}", workflowFileName);
+            throw new RuntimeException("工作流文件不存在: " + workflowFileName);
+        }
+        return templates.computeIfAbsent(workflowFileName,
+                name -> compile(name, new ClassPathResource(WORKFLOW_DIR + name)));
+    }
+
+    /**
+     * 模板是否存在(已加载，或resources/workflows下有该文件)，用于在入队前校验请求
+     */
+    public boolean exists(String workflowFileName) {
+        if (workflowFileName == null || workflowFileName.isBlank()) {
+            return false;
+        }
+        return templates.containsKey(workflowFileName) || !workflowFileName.endsWith(MANIFEST_SUFFIX)
+                && new ClassPathResource(WORKFLOW_DIR + workflowFileName).exists();
+    }
+
+    public Set<String> getTemplateNames() {
+        return Collections.unmodifiableSet(templates.keySet());
+    }
+
+    /**
+     * 读取与模板同名的绑定清单，例如qwen-3d-IP.json对应qwen-3d-IP.binding.json
+     */
+    private WorkflowManifest loadManifest(String workflowFileName) throws IOException {
+        String baseName = workflowFileName.endsWith(".json")
+                ? workflowFileName.substring(0, workflowFileName.length() - ".json".length())
+                : workflowFileName;
+        ClassPathResource resource = new ClassPathResource(WORKFLOW_DIR + baseName + MANIFEST_SUFFIX);
+        if (!resource.exists()) {
+            return null;
+        }
+        try (InputStream inputStream = resource.getInputStream()) {
+            return objectMapper.readValue(inputStream, WorkflowManifest.class);
+        }
+    }
+
+    private static String describe(WorkflowBinding binding) {
+        StringBuilder sb = new StringBuilder();
+        for (WorkflowBinding.Field field : WorkflowBinding.Field.values()) {
+            for (WorkflowBinding.Target target : binding.getTargets(field)) {
+                sb.append(field.getProperty()).append("->").append(target.getNodeId())
+                        .append('.').append(target.getInput()).append(' ');
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private CompiledWorkflow compile(String name, Resource resource) {
+        long start = System.nanoTime();
+        try (InputStream inputStream = resource.getInputStream()) {
+            Map<String, Object> workflow = objectMapper.readValue(inputStream, new TypeReference<Map<String, Object>>() {});
+            CompiledWorkflow compiled = CompiledWorkflow.compile(name, workflow, loadManifest(name));
+            log.info("工作流模板{}参数绑定: {}", name, describe(compiled.getBinding()));
+            generationMetrics.record("word2picture.template.load", System.nanoTime() - start, "template", name);
+            return compiled;
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("解析工作流模板失败: {}", name, e);
+            throw new RuntimeException("解析工作流模板失败: " + name, e);
+        }
+    }
+}
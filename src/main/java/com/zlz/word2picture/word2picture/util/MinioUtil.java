@@ -1,20 +1,63 @@
 package com.zlz.word2picture.word2picture.util;
 
 
-import io.minio.MinioClient;
-import io.minio.PutObjectArgs;
+import io.minio.*;
+import io.minio.errors.ErrorResponseException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.stereotype.Service;
+import org.reactivestreams.Subscription;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 @Service
 @Slf4j
 public class MinioUtil {
+    // MinIO分片(最后一片除外)的最小大小
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    // 计算摘要时的读取缓冲区大小
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // 流式上传时向上游预取的DataBuffer个数
+    private static final int BODY_PREFETCH = 4;
+
     @Autowired
     private MinioClient minioClient;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private Scheduler blockingIoScheduler;
 
     @Value("${minio.url}")
     private String minioUrl;
@@ -24,6 +67,50 @@ public class MinioUtil {
     private String access;
     @Value("${minio.secret}")
     private String secret;
+    // 未知大小的流按该大小分片上传，MinIO要求不小于5MB
+    @Value("${minio.part-size:5242880}")
+    private long partSize;
+    // 同时写入MinIO的请求数上限
+    @Value("${minio.max-concurrent-writes:8}")
+    private int maxConcurrentWrites;
+    // 等待写入名额的最长时间，毫秒
+    @Value("${minio.write-acquire-timeout:30000}")
+    private long writeAcquireTimeout;
+    // 同时读取(查询/下载)MinIO的请求数上限，等待同样受write-acquire-timeout限制
+    @Value("${minio.max-concurrent-reads:32}")
+    private int maxConcurrentReads;
+    // 超过该大小的文件分段并行上传后在服务端合并
+    @Value("${minio.parallel-threshold:33554432}")
+    private long parallelThreshold;
+    // 并行上传的分段大小，合并时MinIO要求不小于5MB
+    @Value("${minio.parallel-part-size:8388608}")
+    private long parallelPartSize;
+
+    // 阻塞调用可能运行在不限数量的虚拟线程上，MinIO的并发由信号量控制
+    private Semaphore writePermits;
+    private Semaphore readPermits;
+    // 并行上传的分段在独立线程池上执行，不占用调用方所在的阻塞I/O线程池
+    private ExecutorService partUploads;
+
+    @PostConstruct
+    public void init() {
+        if (parallelPartSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("minio.parallel-part-size不能小于5MB: " + parallelPartSize);
+        }
+        writePermits = new Semaphore(maxConcurrentWrites);
+        readPermits = new Semaphore(maxConcurrentReads);
+        AtomicInteger threads = new AtomicInteger();
+        partUploads = Executors.newFixedThreadPool(maxConcurrentWrites, task -> {
+            Thread thread = new Thread(task, "minio-part-upload-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        partUploads.shutdownNow();
+    }
 
     public String getFileUrl(String fileName){
         try{
@@ -35,13 +122,326 @@ public class MinioUtil {
     }
     public String uploadToMinio(byte[] data, String objectName, String contentType) throws Exception {
         ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        minioClient.putObject(
-                PutObjectArgs.builder()
+        return uploadToMinio(bais, data.length, objectName, contentType);
+    }
+
+    /**
+     * 以流的方式上传，size未知(-1)时按partSize分片上传，内存中最多只有一个分片
+     */
+    public String uploadToMinio(InputStream in, long size, String objectName, String contentType) throws Exception {
+        acquire(writePermits);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            minioClient.putObject(
+                    PutObjectArgs.builder()
+                            .bucket(bucket)
+                            .object(objectName)
+                            .stream(in, size, size < 0 ? partSize : -1)
+                            .contentType(contentType)
+                            .build());
+            outcome = "success";
+        } finally {
+            writePermits.release();
+            sample.stop(meterRegistry.timer("word2picture.minio.upload", "outcome", outcome));
+        }
+        return objectName;
+    }
+
+    /**
+     * 按内容SHA-256命名上传，MinIO上已有相同内容时跳过上传
+     *
+     * @param source 可重复读取的数据源，例如已落盘的MultipartFile
+     * @return 对象名
+     */
+    public String uploadDeduplicated(InputStreamSource source, long size, String originalName, String contentType) throws Exception {
+        String hash;
+        try (InputStream in = source.getInputStream()) {
+            hash = sha256(in);
+        }
+        String objectName = "uploads/" + hash + extension(originalName);
+        if (exists(objectName)) {
+            log.info("MinIO已存在相同内容，跳过上传: {} -> {}", originalName, objectName);
+            return objectName;
+        }
+        if (size >= parallelThreshold) {
+            return uploadParallel(source, size, objectName, contentType);
+        }
+        try (InputStream in = source.getInputStream()) {
+            return uploadToMinio(in, size, objectName, contentType);
+        }
+    }
+
+    /**
+     * 下载对象到本地文件
+     */
+    public void download(String objectName, Path file) throws Exception {
+        acquire(readPermits);
+        try (InputStream in = minioClient.getObject(GetObjectArgs.builder().bucket(bucket).object(objectName).build())) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            readPermits.release();
+        }
+    }
+
+    /**
+     * 确认桶存在，不存在时创建
+     */
+    public void ensureBucket() throws Exception {
+        if (minioClient.bucketExists(BucketExistsArgs.builder().bucket(bucket).build())) {
+            log.info("bucket:{}已存在",bucket);
+        } else {
+            minioClient.makeBucket(MakeBucketArgs.builder().bucket(bucket).build());
+            log.info("bucket:{}已创建",bucket);
+        }
+    }
+
+    public boolean exists(String objectName) throws Exception {
+        acquire(readPermits);
+        try {
+            minioClient.statObject(StatObjectArgs.builder().bucket(bucket).object(objectName).build());
+            return true;
+        } catch (ErrorResponseException e) {
+            if ("NoSuchKey".equals(e.errorResponse().code())) {
+                return false;
+            }
+            throw e;
+        } finally {
+            readPermits.release();
+        }
+    }
+
+    /**
+     * 大文件按parallelPartSize切分后并行上传为临时对象，再由MinIO服务端合并，合并后删除临时对象
+     */
+    private String uploadParallel(InputStreamSource source, long size, String objectName, String contentType) throws Exception {
+        int parts = (int) ((size + parallelPartSize - 1) / parallelPartSize);
+        String partPrefix = objectName + ".parts/";
+        long start = System.currentTimeMillis();
+        try {
+            List<CompletableFuture<ComposeSource>> uploads = new ArrayList<>(parts);
+            for (int i = 0; i < parts; i++) {
+                long offset = i * parallelPartSize;
+                String part = partPrefix + i;
+                uploads.add(CompletableFuture.supplyAsync(() -> {
+                    try (InputStream in = source.getInputStream()) {
+                        in.skipNBytes(offset);
+                        uploadToMinio(in, Math.min(parallelPartSize, size - offset), part, contentType);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                    return ComposeSource.builder().bucket(bucket).object(part).build();
+                }, partUploads));
+            }
+            // 等所有分段结束(包括失败的)后再合并或清理临时对象
+            try {
+                CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0])).join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+            List<ComposeSource> sources = uploads.stream().map(CompletableFuture::join).collect(Collectors.toList());
+            acquire(writePermits);
+            try {
+                minioClient.composeObject(ComposeObjectArgs.builder()
                         .bucket(bucket)
                         .object(objectName)
-                        .stream(bais, data.length, -1)
-                        .contentType(contentType)
+                        .sources(sources)
+                        .headers(Collections.singletonMap("Content-Type", contentType))
                         .build());
-        return objectName;
+            } finally {
+                writePermits.release();
+            }
+            log.info("分段并行上传完成: {}, 大小: {}, 分段数: {}, 耗时: {}ms",
+                    objectName, size, parts, System.currentTimeMillis() - start);
+            return objectName;
+        } finally {
+            for (int i = 0; i < parts; i++) {
+                try {
+                    minioClient.removeObject(RemoveObjectArgs.builder().bucket(bucket).object(partPrefix + i).build());
+                } catch (Exception e) {
+                    log.warn("删除临时分段失败: {}{}, {}", partPrefix, i, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void acquire(Semaphore permits) throws InterruptedException {
+        if (!permits.tryAcquire(writeAcquireTimeout, TimeUnit.MILLISECONDS)) {
+            throw new RuntimeException(permits == writePermits ? "MinIO写入繁忙，请稍后重试" : "MinIO读取繁忙，请稍后重试");
+        }
+    }
+
+    private static String sha256(InputStream in) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            digest.update(buffer, 0, n);
+        }
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String extension(String fileName) {
+        if (fileName == null) {
+            return "";
+        }
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && dot > fileName.lastIndexOf('/') ? fileName.substring(dot).toLowerCase() : "";
+    }
+
+    /**
+     * 将响应体数据流直接写入MinIO，不在内存中拼接整个文件
+     * 上传线程读取一个缓冲区后才向上游请求下一个，投递响应体的事件循环从不阻塞；内存中最多有BODY_PREFETCH个缓冲区
+     */
+    public Mono<String> uploadToMinio(Flux<DataBuffer> body, long size, String objectName, String contentType) {
+        return Mono.defer(() -> {
+            DataBufferInputStream in = new DataBufferInputStream();
+            return Mono.fromCallable(() -> {
+                        body.subscribe(in);
+                        try (in) {
+                            return uploadToMinio(in, size, objectName, contentType);
+                        }
+                    })
+                    .subscribeOn(blockingIoScheduler)
+                    // 取消时停止读取响应体，并唤醒等待数据的上传线程
+                    .doOnCancel(in::cancel);
+        });
+    }
+
+    /**
+     * 以背压方式读取DataBuffer流的InputStream：每读完一个缓冲区再向上游请求一个
+     */
+    static final class DataBufferInputStream extends InputStream implements CoreSubscriber<DataBuffer> {
+        private static final Object COMPLETE = new Object();
+        // 取消后放入队列，唤醒等待数据的读取线程
+        private static final Object CANCELLED = new Object();
+
+        // 缓冲区、结束/取消标记或异常，缓冲区数量不超过已请求的个数
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        private volatile Subscription subscription;
+        private volatile boolean closed;
+        private DataBuffer current;
+        private boolean done;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+            if (closed) {
+                subscription.cancel();
+            } else {
+                subscription.request(BODY_PREFETCH);
+            }
+        }
+
+        @Override
+        public void onNext(DataBuffer buffer) {
+            if (closed) {
+                DataBufferUtils.release(buffer);
+                return;
+            }
+            queue.offer(buffer);
+            // 与cancel()并发时，入队后再检查一次，由本线程释放
+            if (closed) {
+                drain();
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            queue.offer(e);
+        }
+
+        @Override
+        public void onComplete() {
+            queue.offer(COMPLETE);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null || current.readableByteCount() == 0) {
+                if (done) {
+                    return -1;
+                }
+                if (closed) {
+                    throw new IOException("上传已取消");
+                }
+                if (current != null) {
+                    DataBufferUtils.release(current);
+                    current = null;
+                    subscription.request(1);
+                }
+                Object next;
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("读取待上传数据被中断");
+                }
+                if (next == COMPLETE) {
+                    done = true;
+                } else if (next == CANCELLED) {
+                    throw new IOException("上传已取消");
+                } else if (next instanceof Throwable error) {
+                    done = true;
+                    throw new IOException("读取待上传数据失败: " + error.getMessage(), error);
+                } else {
+                    current = (DataBuffer) next;
+                }
+            }
+            int n = Math.min(len, current.readableByteCount());
+            current.read(b, off, n);
+            return n;
+        }
+
+        /**
+         * 由上传线程在结束时调用，释放正在读取的缓冲区
+         */
+        @Override
+        public void close() {
+            cancel();
+            if (current != null) {
+                DataBufferUtils.release(current);
+                current = null;
+            }
+        }
+
+        /**
+         * 可在任意线程调用：取消上游并释放尚未读取的缓冲区
+         */
+        void cancel() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Subscription s = subscription;
+            if (s != null) {
+                s.cancel();
+            }
+            drain();
+        }
+
+        /**
+         * 一次取出队列中的全部内容并释放其中的缓冲区，再放回一个取消标记
+         */
+        private void drain() {
+            for (Object item; (item = queue.poll()) != null; ) {
+                if (item instanceof DataBuffer buffer) {
+                    DataBufferUtils.release(buffer);
+                }
+            }
+            queue.offer(CANCELLED);
+        }
     }
 }
@@ -0,0 +1,108 @@
+package com.zlz.word2picture.word2picture.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zlz.word2picture.word2picture.config.ComfyUIProperties;
+import com.zlz.word2picture.word2picture.model.TaskRecord;
+import com.zlz.word2picture.word2picture.model.TaskResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TaskStateStoreTest {
+
+    private static final String TASK_ID = "6f1c2a9e-0000-4000-8000-000000000001";
+    // ComfyUI执行失败时/history中的记录：没有输出，status_str为error
+    private static final String FAILED_HISTORY = "{\"" + TASK_ID + "\": {\"prompt\": [], \"outputs\": {},"
+            + " \"status\": {\"status_str\": \"error\", \"completed\": false, \"messages\": ["
+            + "[\"execution_start\", {\"prompt_id\": \"" + TASK_ID + "\"}],"
+            + "[\"execution_error\", {\"prompt_id\": \"" + TASK_ID + "\", \"node_type\": \"KSampler\","
+            + " \"exception_message\": \"CUDA out of memory\"}]]}}}";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoveredTaskFailedDuringRestartBecomesError() throws Exception {
+        Path file = dir.resolve("task-journal.log");
+        TaskRecord submitted = new TaskRecord(TASK_ID, "client-1", "SUBMITTED", "图像生成任务已提交",
+                null, "gpu-0", System.currentTimeMillis(), 3);
+        Files.write(file, List.of(objectMapper.writeValueAsString(new TaskJournal.Entry(System.currentTimeMillis(), submitted))),
+                StandardCharsets.UTF_8);
+        AtomicInteger historyRequests = new AtomicInteger();
+
+        TaskJournal journal = journal(file);
+        TaskStateStore store = store(journal, history(FAILED_HISTORY, historyRequests));
+        List<TaskResponse> recovered = store.takeRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals("SUBMITTED", recovered.get(0).getStatus());
+
+        TaskResponse refreshed = store.refresh(TASK_ID).block();
+        assertEquals("ERROR", refreshed.getStatus());
+        assertEquals("CUDA out of memory", refreshed.getMessage());
+        assertEquals(1, historyRequests.get());
+        journal.close();
+
+        // 再次重启时直接以日志中的失败状态恢复，不再作为未结束的任务重新跟踪
+        TaskJournal reopened = journal(file);
+        TaskStateStore restarted = store(reopened, history(FAILED_HISTORY, historyRequests));
+        assertEquals(0, restarted.takeRecovered().size());
+        assertEquals("ERROR", restarted.get(TASK_ID).getStatus());
+        assertEquals("CUDA out of memory", restarted.get(TASK_ID).getMessage());
+        reopened.close();
+    }
+
+    private TaskJournal journal(Path file) {
+        TaskJournal journal = new TaskJournal();
+        ReflectionTestUtils.setField(journal, "objectMapper", objectMapper);
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "path", file.toString());
+        ReflectionTestUtils.setField(journal, "compactThreshold", Long.MAX_VALUE);
+        return journal;
+    }
+
+    private TaskStateStore store(TaskJournal journal, ComfyUIBackend backend) {
+        ComfyUIBackendPool pool = mock(ComfyUIBackendPool.class);
+        when(pool.get("gpu-0")).thenReturn(backend);
+        when(pool.getBackends()).thenReturn(List.of(backend));
+        TaskStateStore store = new TaskStateStore();
+        ReflectionTestUtils.setField(store, "comfyUIBackendPool", pool);
+        ReflectionTestUtils.setField(store, "objectMapper", objectMapper);
+        ReflectionTestUtils.setField(store, "properties", new ComfyUIProperties());
+        ReflectionTestUtils.setField(store, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(store, "taskJournal", journal);
+        store.init();
+        return store;
+    }
+
+    private static ComfyUIBackend history(String body, AtomicInteger requests) {
+        WebClient webClient = WebClient.builder()
+                .exchangeFunction(request -> {
+                    requests.incrementAndGet();
+                    return Mono.just(ClientResponse.create(HttpStatus.OK)
+                            .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                            .body(body)
+                            .build());
+                })
+                .build();
+        return new ComfyUIBackend("gpu-0", "http://gpu-0", webClient, null);
+    }
+}
@@ -0,0 +1,147 @@
+package com.zlz.word2picture.word2picture.util;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 流式上传使用的DataBufferInputStream：读取内容、背压和取消时缓冲区的释放
+ */
+class MinioUtilTest {
+
+    private final NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(new UnpooledByteBufAllocator(false));
+
+    @Test
+    void readsAllBuffersAndReleasesThem() throws IOException {
+        List<NettyDataBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            buffers.add(buffer("part-" + i + ";"));
+        }
+        MinioUtil.DataBufferInputStream in = new MinioUtil.DataBufferInputStream();
+        Flux.fromIterable(buffers).subscribe(in);
+        byte[] content;
+        try (in) {
+            content = in.readAllBytes();
+        }
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            expected.append("part-").append(i).append(';');
+        }
+        assertArrayEquals(expected.toString().getBytes(StandardCharsets.UTF_8), content);
+        assertReleased(buffers);
+    }
+
+    @Test
+    void requestsNextBufferOnlyAfterReading() throws IOException {
+        ManualSubscription subscription = new ManualSubscription();
+        MinioUtil.DataBufferInputStream in = new MinioUtil.DataBufferInputStream();
+        in.onSubscribe(subscription);
+        long prefetch = subscription.requested;
+        assertTrue(prefetch > 0);
+        NettyDataBuffer first = buffer("abc");
+        in.onNext(first);
+        assertEquals(3, in.read(new byte[8], 0, 8));
+        assertEquals(prefetch, subscription.requested);
+        in.onNext(buffer("d"));
+        assertEquals('d', in.read());
+        // 第一个缓冲区读完后才释放并补充请求
+        assertEquals(0, first.getNativeBuffer().refCnt());
+        assertEquals(prefetch + 1, subscription.requested);
+        in.close();
+        assertTrue(subscription.cancelled);
+    }
+
+    @Test
+    void cancelWakesBlockedReader() throws Exception {
+        MinioUtil.DataBufferInputStream in = new MinioUtil.DataBufferInputStream();
+        in.onSubscribe(new ManualSubscription());
+        CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+            try {
+                return in.read();
+            } catch (IOException e) {
+                return -2;
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(50);
+        in.cancel();
+        assertEquals(-2, read.get(5, TimeUnit.SECONDS));
+        assertThrows(IOException.class, in::read);
+    }
+
+    @Test
+    void bufferArrivingWhileCancellingIsReleased() throws Exception {
+        for (int round = 0; round < 2000; round++) {
+            MinioUtil.DataBufferInputStream in = new MinioUtil.DataBufferInputStream();
+            in.onSubscribe(new ManualSubscription());
+            List<NettyDataBuffer> buffers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                buffers.add(buffer("x"));
+            }
+            in.onNext(buffers.get(0));
+            CountDownLatch start = new CountDownLatch(1);
+            CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> {
+                await(start);
+                for (int i = 1; i < buffers.size(); i++) {
+                    in.onNext(buffers.get(i));
+                }
+            });
+            CompletableFuture<Void> canceller = CompletableFuture.runAsync(() -> {
+                await(start);
+                in.cancel();
+            });
+            start.countDown();
+            CompletableFuture.allOf(producer, canceller).get(5, TimeUnit.SECONDS);
+            in.close();
+            assertReleased(buffers);
+        }
+    }
+
+    private NettyDataBuffer buffer(String content) {
+        return bufferFactory.wrap(bufferFactory.getByteBufAllocator().buffer().writeBytes(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void assertReleased(List<NettyDataBuffer> buffers) {
+        for (NettyDataBuffer buffer : buffers) {
+            assertEquals(0, buffer.getNativeBuffer().refCnt());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class ManualSubscription implements Subscription {
+        private volatile long requested;
+        private volatile boolean cancelled;
+
+        @Override
+        public synchronized void request(long n) {
+            requested += n;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}